@@ -6,13 +6,7 @@ async function hydrateForm() {
         return;
     }
 
-    const req = await fetch("http://localhost:8000/query", {
-        method: "POST",
-        headers: {
-            'Authorization': getAuthToken()
-        },
-        body: `select * from profiles where userId=${userId}`
-    })
+    const req = await selectQuery(`select * from profiles where userId=${userId}`)
 
     if (!req.ok) {
         console.log("Something went wrong! " + req.body())
@@ -151,13 +145,7 @@ function handleImageSelect() {
 async function submitQuery(userId, newPfp) {
     const bio = document.getElementById('editBio').value;
 
-    const req = await fetch("http://localhost:8000/query", {
-        method: "POST",
-        headers: {
-            'Authorization': getAuthToken()
-        },
-        body: `select * from profiles where userId=${userId}`
-    })
+    const req = await selectQuery(`select * from profiles where userId=${userId}`)
 
     if (!req.ok) {
         console.log("Something went wrong! " + req.body())
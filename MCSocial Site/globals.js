@@ -59,6 +59,15 @@ function getAuthToken() {
     } else return null;
 }
 
+// Selects go over GET so the browser keeps their results and only downloads them again once they've changed
+function selectQuery(query) {
+    return fetch("http://localhost:8000/query?q=" + encodeURIComponent(query), {
+        headers: {
+            'Authorization': getAuthToken()
+        }
+    });
+}
+
 function getSignedInId() {
     const authToken = localStorage.getItem("mcSocialAuthToken");
     if (authToken !== undefined && authToken !== null) {
@@ -76,13 +85,7 @@ function getUsername() {
 }
 
 async function getProfilePictureLink(userId) {
-    const req = await fetch("http://localhost:8000/query", {
-        method: "POST",
-        headers: {
-            'Authorization': getAuthToken()
-        },
-        body: `select * from profiles where userId=${userId}`
-    })
+    const req = await selectQuery(`select * from profiles where userId=${userId}`)
 
     if (!req.ok) {
         return null;
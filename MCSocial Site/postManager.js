@@ -1,12 +1,6 @@
 async function fetchAllPosts() {
     try {
-        const req = await fetch("http://localhost:8000/query", {
-            method: "POST",
-            headers: {
-                'Authorization': getAuthToken()
-            },
-            body: "select * from posts"
-        })
+        const req = await selectQuery("select * from posts")
 
         if (!req.ok) {
             alert("Request failed: " + req.statusText);
@@ -47,13 +41,7 @@ async function mapPostsUserId() {
     const urlParams = new URLSearchParams(window.location.search);
     const id = urlParams.get('id');
 
-    const req = await fetch("http://localhost:8000/query", {
-        method: "POST",
-        headers: {
-            'Authorization': getAuthToken()
-        },
-        body: `select * from posts where userId=${id}`
-    })
+    const req = await selectQuery(`select * from posts where userId=${id}`)
 
     if (!req.ok) {
         return null;
@@ -83,13 +71,7 @@ async function mapPostsUserId() {
 async function displaySinglePost() {
     const urlParams = new URLSearchParams(window.location.search);
     const id = urlParams.get('id');
-    const req = await fetch("http://localhost:8000/query", {
-        method: "POST",
-        headers: {
-            'Authorization': getAuthToken()
-        },
-        body: `select ${id} from posts`
-    })
+    const req = await selectQuery(`select ${id} from posts`)
 
     if (!req.ok) {
         return null;
@@ -107,13 +89,7 @@ async function displaySinglePost() {
 }
 
 async function deletePost(id) {
-    const ref = await fetch("http://localhost:8000/query", {
-        method: "POST",
-        headers: {
-            'Authorization': getAuthToken()
-        },
-        body: `select ${id} from posts`
-    });
+    const ref = await selectQuery(`select ${id} from posts`);
 
     if (!ref.ok) {
         alert(await ref.text());
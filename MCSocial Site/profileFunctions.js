@@ -3,13 +3,7 @@ async function hydrateForm() {
     const userId = urlParams.get('id');
     const numPosts = await getNumberPosts(userId);
 
-    const req = await fetch("http://localhost:8000/query", {
-        method: "POST",
-        headers: {
-            'Authorization': getAuthToken()
-        },
-        body: `select * from profiles where userId=${userId}`
-    })
+    const req = await selectQuery(`select * from profiles where userId=${userId}`)
 
     if (!req.ok) {
         console.log("Something went wrong! " + req.body())
@@ -48,13 +42,7 @@ async function hydrateForm() {
 }
 
 async function getNumberPosts(userId) {
-    const req = await fetch("http://localhost:8000/query", {
-        method: "POST",
-        headers: {
-            'Authorization': getAuthToken()
-        },
-        body: `select * from posts where userId=${userId}`
-    });
+    const req = await selectQuery(`select * from posts where userId=${userId}`);
 
     if (!req.ok) {
         return 0;
@@ -1,9 +1,17 @@
 package com.decacagle;
 
 import com.decacagle.data.DataUtilities;
+import com.decacagle.data.ContentVersions;
 import com.decacagle.data.DataWorker;
+import com.decacagle.data.FileCache;
+import com.decacagle.data.FileMirror;
+import com.decacagle.data.FileRoutes;
+import com.decacagle.data.IntegrityScrubber;
+import com.decacagle.data.PageStore;
 import com.decacagle.data.TableManager;
+import com.decacagle.data.WriteAheadLog;
 import com.decacagle.endpoints.*;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
@@ -20,34 +28,137 @@ public class APIManager {
     private World world;
     private DecaDB plugin;
     private DataWorker worker;
+    private WriteAheadLog wal;
     private TableManager tableManager;
+    private IntegrityScrubber scrubber;
+    private ContentVersions versions;
+    private FileCache fileCache;
+    private FileMirror fileMirror;
+    private FileRoutes fileRoutes;
     private HttpServer server;
-    private Set<String> activeContexts;
 
     public APIManager(Logger logger, World world, DecaDB plugin) {
         this.logger = logger;
         this.world = world;
         this.plugin = plugin;
-        this.worker = new DataWorker(logger, world, plugin);
-        this.tableManager = new TableManager(logger, world, worker);
-        this.activeContexts = new HashSet<>();
+        this.worker = new DataWorker(logger, world, plugin, createPageStore());
+        this.worker.setReadAhead(plugin.getConfig().getInt("working-set.read-ahead-chunks", 8));
+        this.versions = new ContentVersions();
+        this.tableManager = new TableManager(logger, world, worker, versions);
+        this.fileCache = new FileCache(plugin.getConfig().getLong("file-cache.max-megabytes", 64) * 1024 * 1024,
+                plugin.getConfig().getLong("file-cache.max-file-megabytes", 8) * 1024 * 1024, versions, plugin.getMetrics());
+        this.fileMirror = new FileMirror(logger, plugin, plugin.getConfig().getBoolean("file-mirror.enabled", false), plugin.getMetrics());
+        this.fileRoutes = new FileRoutes();
+        startWriteAheadLog();
+        startWriteBehind();
+        startScrubber();
         startHTTPServer();
     }
 
+    /**
+     * Creates the storage backend named by storage.backend, falling back to wool blocks if it isn't known
+     */
+    private PageStore createPageStore() {
+        String backend = plugin.getConfig().getString("storage.backend", "wool");
+        PageStore store = PageStore.forBackend(backend, world, plugin);
+
+        if (store == null) {
+            logger.warning("Unknown storage backend " + backend + ", using wool");
+            return PageStore.forBackend("wool", world, plugin);
+        }
+
+        logger.info("Using the " + backend + " storage backend");
+        return store;
+    }
+
+    /**
+     * Replays anything committed since the last checkpoint, then opens the log for new mutations
+     */
+    private void startWriteAheadLog() {
+        if (!plugin.getConfig().getBoolean("wal.enabled", true)) {
+            logger.info("Write-ahead log is disabled");
+            return;
+        }
+
+        wal = new WriteAheadLog(logger, world, plugin);
+        worker.replay(wal.readCommittedOperations());
+
+        try {
+            wal.open();
+            worker.setWriteAheadLog(wal);
+            logger.info("Write-ahead log opened");
+        } catch (IOException e) {
+            logger.severe("Error opening write-ahead log, continuing without it: " + e.getMessage());
+            wal = null;
+        }
+    }
+
+    /**
+     * Row writes are acknowledged from memory and written to blocks in the background.
+     * Only enabled alongside the write-ahead log, which is what makes those acknowledgements durable.
+     */
+    private void startWriteBehind() {
+        if (wal == null || !plugin.getConfig().getBoolean("write-behind.enabled", true)) {
+            return;
+        }
+
+        worker.enableWriteBehind(plugin.getConfig().getLong("write-behind.tick-budget-ms", 5));
+        wal.setBeforeCheckpoint(worker::flushAllPendingWrites);
+        logger.info("Write-behind row buffer enabled");
+    }
+
+    /**
+     * Checks loaded wool data against its checksums in the background, at the rate set in the config
+     */
+    private void startScrubber() {
+        int chunksPerSecond = plugin.getConfig().getInt("integrity.scrub-chunks-per-second", 20);
+
+        if (!plugin.getConfig().getBoolean("integrity.checksums", true) || chunksPerSecond <= 0) {
+            return;
+        }
+
+        scrubber = new IntegrityScrubber(logger, world, plugin, plugin.getMetrics());
+        scrubber.start(chunksPerSecond);
+        logger.info("Integrity scrubber checking up to " + chunksPerSecond + " chunks per second");
+    }
+
+    public void shutdown() {
+        if (server != null) {
+            server.stop(0);
+        }
+
+        if (scrubber != null) {
+            scrubber.stop();
+        }
+
+        worker.flushAllPendingWrites();
+        worker.getStore().close();
+
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
     public void startHTTPServer() {
         try {
             server = HttpServer.create(new InetSocketAddress(8000), 0);
 
             // Updated handlers now use TableManager for recycling support
-            server.createContext("/upload", new UploadHandler(server, logger, world, plugin, worker));
-            server.createContext("/deleteFile", new DeleteFileHandler(server, logger, world, plugin, worker));
-            server.createContext("/query", new QueryHandler(logger, world, plugin, worker));
+            UploadHandler uploadHandler = new UploadHandler(logger, world, plugin, worker, tableManager, fileCache, fileMirror, versions, fileRoutes);
+            FileReader fileReader = new FileReader(logger, world, plugin, worker, fileCache, fileMirror, versions, fileRoutes);
+            createContext("/upload", uploadHandler, fileReader);
+            createContext("/files", new FilesHandler(logger, world, plugin, worker, uploadHandler, fileReader), fileReader);
+            createContext("/deleteFile", new DeleteFileHandler(logger, world, plugin, worker, tableManager, fileCache, fileRoutes), fileReader);
+            createContext("/query", new QueryHandler(logger, world, plugin, worker, tableManager, versions), fileReader);
+            createContext("/metrics", new MetricsHandler(logger, world, plugin, worker), fileReader);
+            // Files are served at /{title} as well, so everything no other context takes is looked up as a file path
+            server.createContext("/", fileReader);
 
             // Initialize core system tables
             initializeSystemTables();
 
             // On server launch, read through list of current saved files and create routes for those files
-            addRoutes(server);
+            addRoutes();
 
             server.setExecutor(null);
             server.start();
@@ -60,6 +171,22 @@ public class APIManager {
         }
     }
 
+    /**
+     * Creates a context that only handles its own path and the paths under it. HttpServer matches contexts by
+     * prefix, so /upload would also take /uploads.png, which is a file path and goes to the file router instead.
+     */
+    private void createContext(String path, HttpHandler handler, FileReader fileReader) {
+        server.createContext(path, exchange -> {
+            String requested = exchange.getRequestURI().getPath();
+
+            if (requested.equals(path) || requested.startsWith(path + "/")) {
+                handler.handle(exchange);
+            } else {
+                fileReader.handle(exchange);
+            }
+        });
+    }
+
     /**
      * Initialize system tables required for operation
      */
@@ -85,9 +212,9 @@ public class APIManager {
         }
     }
 
-    public void addRoutes(HttpServer server) {
+    public void addRoutes() {
         try {
-            Bukkit.getScheduler().runTask(plugin, () -> addFileRoutes(server));
+            Bukkit.getScheduler().runTask(plugin, this::addFileRoutes);
         } catch (Exception e) {
             logger.severe("Error adding routes: " + e.getMessage());
             e.printStackTrace();
@@ -96,12 +223,13 @@ public class APIManager {
 
     int indexOffset = -1;
 
-    public void addFileRoutes(HttpServer server) {
+    public void addFileRoutes() {
         String startIndex = worker.readChunkSafely(0, -1, false, 1);
 
         if (!startIndex.isEmpty() && !startIndex.equals("0")) {
             Set<String> processedTitles = new HashSet<>();
             Set<Integer> processedIndices = new HashSet<>();
+            Set<String> hashes = new HashSet<>();
 
             int currentIndex = Integer.parseInt(startIndex);
 
@@ -120,14 +248,13 @@ public class APIManager {
 
             String title = DataUtilities.parseTitle(currentMetadata);
             int nextIndex = DataUtilities.parseNextIndexTable(currentMetadata);
+            hashes.add(DataUtilities.parseFileHash(currentMetadata));
 
             // Process first file
-            if (createFileRoute(server, title, currentIndex, processedTitles, processedIndices)) {
-                logger.info("Created route for file: " + title + " (index: " + currentIndex + ")");
-            }
+            createFileRoute(title, currentIndex, processedTitles, processedIndices);
 
             // Process remaining files in the linked list
-            int maxIterations = 1000; // Prevent infinite loops
+            int maxIterations = 100000; // Prevent infinite loops, no file index is this high
             int iterations = 0;
 
             while (nextIndex != 0 && iterations < maxIterations) {
@@ -153,19 +280,24 @@ public class APIManager {
 
                 title = DataUtilities.parseTitle(currentMetadata);
                 nextIndex = DataUtilities.parseNextIndexTable(currentMetadata);
+                hashes.add(DataUtilities.parseFileHash(currentMetadata));
 
-                if (createFileRoute(server, title, currentIndex, processedTitles, processedIndices)) {
-                    logger.info("Created route for file: " + title + " (index: " + currentIndex + ")");
-                }
+                createFileRoute(title, currentIndex, processedTitles, processedIndices);
             }
 
             if (iterations >= maxIterations) {
                 logger.warning("Maximum iterations reached while processing file chain. Possible corruption.");
             }
 
-            logger.info("File routes initialization complete. Processed " + processedIndices.size() + " files.");
+            // Only with every file seen can we tell which mirror files nothing uses any more
+            if (nextIndex == 0) {
+                fileMirror.retainOnly(hashes);
+            }
+
+            logger.info("File routes initialization complete. Routed " + processedIndices.size() + " files.");
         } else {
             logger.info("No files found to create routes for.");
+            fileMirror.retainOnly(Set.of());
         }
     }
 
@@ -177,58 +309,46 @@ public class APIManager {
     }
 
     /**
-     * Creates a file route, handling duplicates and errors
+     * Routes a file's path to it, handling duplicates
      */
-    private boolean createFileRoute(HttpServer server, String title, int index,
-                                    Set<String> processedTitles, Set<Integer> processedIndices) {
-        try {
-            if (processedIndices.contains(index)) {
-                logger.warning("Duplicate file index detected: " + index);
-                return false;
-            }
-
-            String contextPath = DataUtilities.contextNameBuilder(title);
-
-            if (processedTitles.contains(title)) {
-                logger.warning("Duplicate file title detected: " + title + " - adding index suffix");
-                contextPath = DataUtilities.contextNameBuilder(title + "_" + index);
-            }
+    private boolean createFileRoute(String title, int index, Set<String> processedTitles, Set<Integer> processedIndices) {
+        if (processedIndices.contains(index)) {
+            logger.warning("Duplicate file index detected: " + index);
+            return false;
+        }
 
-            if (activeContexts.contains(contextPath)) {
-                logger.warning("Context path already exists: " + contextPath);
-                return false;
-            }
+        String routedTitle = title;
 
-            server.createContext(contextPath, new FileReader(logger, world, plugin, worker, index));
-            activeContexts.add(contextPath);
-            processedTitles.add(title);
-            processedIndices.add(index);
+        if (processedTitles.contains(title)) {
+            logger.warning("Duplicate file title detected: " + title + " - adding index suffix");
+            routedTitle = title + "_" + index;
+        }
 
-            return true;
-        } catch (Exception e) {
-            logger.severe("Error creating route for file " + title + " (index " + index + "): " + e.getMessage());
+        if (fileRoutes.contains(routedTitle)) {
+            logger.warning("Route already exists: " + DataUtilities.contextNameBuilder(routedTitle));
             return false;
         }
+
+        fileRoutes.add(routedTitle, index);
+        processedTitles.add(title);
+        processedIndices.add(index);
+
+        return true;
     }
 
     /**
-     * Safely removes a context and updates tracking
+     * Stops serving the file routed at this title, unless another file has taken its path over
      */
-    public void removeFileRoute(String contextPath) {
-        try {
-            server.removeContext(contextPath);
-            activeContexts.remove(contextPath);
-            logger.info("Removed route: " + contextPath);
-        } catch (Exception e) {
-            logger.warning("Error removing route " + contextPath + ": " + e.getMessage());
-        }
+    public void removeFileRoute(String title, int index) {
+        fileRoutes.remove(title, index);
+        logger.info("Removed route: " + DataUtilities.contextNameBuilder(title));
     }
 
     /**
-     * Gets the set of active contexts
+     * Gets the paths of every routed file
      */
     public Set<String> getActiveContexts() {
-        return new HashSet<>(activeContexts);
+        return fileRoutes.paths();
     }
 
     /**
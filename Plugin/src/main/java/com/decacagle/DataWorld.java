@@ -0,0 +1,86 @@
+package com.decacagle;
+
+import com.decacagle.data.PageStore;
+import com.decacagle.data.Region;
+import org.bukkit.GameRule;
+import org.bukkit.World;
+import org.bukkit.WorldCreator;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+/**
+ * Creates or loads the world MCDB keeps its data in. By default that is a world of its own, generated by
+ * VoidGenerator and with every game rule that ticks or spawns things turned off, so data chunks are cheap to
+ * generate, load and save and are kept apart from the chunks players play in.
+ */
+public class DataWorld {
+
+    private static final String MAIN_WORLD = "world";
+
+    public static World resolve(DecaDB plugin, Logger logger) {
+        if (!plugin.getConfig().getBoolean("data-world.enabled", true)) {
+            logger.info("Keeping data in the main world");
+            return plugin.getServer().getWorld(MAIN_WORLD);
+        }
+
+        String name = plugin.getConfig().getString("data-world.name", "mcdb_data");
+        boolean exists = new File(plugin.getServer().getWorldContainer(), name).isDirectory();
+
+        if (!exists) {
+            // A database from before the data world still lives in the main world; don't hide it behind an empty one
+            World main = plugin.getServer().getWorld(MAIN_WORLD);
+
+            if (main != null && hasDatabase(main, plugin)) {
+                logger.warning("Found an existing database in " + MAIN_WORLD + ", so it stays there. Set data-world.enabled to false to silence this.");
+                return main;
+            }
+        }
+
+        World world = new WorldCreator(name)
+                .generator(new VoidGenerator())
+                .generateStructures(false)
+                .createWorld();
+
+        if (world == null) {
+            logger.severe("Failed to create data world " + name + ", keeping data in the main world");
+            return plugin.getServer().getWorld(MAIN_WORLD);
+        }
+
+        world.setGameRule(GameRule.DO_MOB_SPAWNING, false);
+        world.setGameRule(GameRule.DO_PATROL_SPAWNING, false);
+        world.setGameRule(GameRule.DO_TRADER_SPAWNING, false);
+        world.setGameRule(GameRule.DO_WARDEN_SPAWNING, false);
+        world.setGameRule(GameRule.DO_INSOMNIA, false);
+        world.setGameRule(GameRule.DO_FIRE_TICK, false);
+        world.setGameRule(GameRule.DO_DAYLIGHT_CYCLE, false);
+        world.setGameRule(GameRule.DO_WEATHER_CYCLE, false);
+        world.setGameRule(GameRule.RANDOM_TICK_SPEED, 0);
+        // Chunk tickets decide what stays loaded, not the spawn area
+        world.setGameRule(GameRule.SPAWN_CHUNK_RADIUS, 0);
+        world.setSpawnFlags(false, false);
+
+        logger.info((exists ? "Loaded" : "Created") + " data world " + name);
+
+        return world;
+    }
+
+    /**
+     * Whether the world holds a table catalog, read through the configured backend since a pdc database has no
+     * blocks to find it by
+     */
+    private static boolean hasDatabase(World world, DecaDB plugin) {
+        PageStore store = PageStore.baseBackend(plugin.getConfig().getString("storage.backend", "wool"), world, plugin);
+
+        if (store == null) {
+            store = PageStore.baseBackend("wool", world, plugin);
+        }
+
+        try {
+            return !store.read(Region.chunk(0, 1)).isEmpty();
+        } finally {
+            store.close();
+        }
+    }
+
+}
@@ -1,23 +1,69 @@
 package com.decacagle;
 
+import com.decacagle.benchmark.StorageBenchmark;
+import org.bukkit.World;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.util.List;
+
 public class DecaDB extends JavaPlugin {
 
     private APIManager httpServer = null;
+    private World dataWorld = null;
+    private final Metrics metrics = new Metrics();
 
     @Override
     public void onEnable() {
         getLogger().info("DecaDB v1.0 launched successfully!");
 
+        saveDefaultConfig();
+
         if (httpServer == null) {
-            httpServer = new APIManager(getLogger(), getServer().getWorld("world"), this);
+            dataWorld = DataWorld.resolve(this, getLogger());
+            httpServer = new APIManager(getLogger(), dataWorld, this);
         }
 
     }
 
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * /decadb-benchmark, limited to ops by plugin.yml. Commands run on the main thread, where the wool writes have
+     * to happen anyway, and the server stalls until the benchmark finishes.
+     */
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (!command.getName().equalsIgnoreCase("decadb-benchmark")) {
+            return false;
+        }
+
+        if (dataWorld == null) {
+            sender.sendMessage("DecaDB hasn't loaded its data world");
+            return true;
+        }
+
+        sender.sendMessage("Running the storage benchmark, the server will stall until it finishes...");
+
+        List<String> results = StorageBenchmark.wool(dataWorld);
+        for (String line : results) {
+            sender.sendMessage(line);
+        }
+
+        getLogger().info("Storage benchmark:\n" + String.join("\n", results));
+
+        return true;
+    }
+
     @Override
     public void onDisable() {
+        if (httpServer != null) {
+            httpServer.shutdown();
+        }
+
         getLogger().info("DecaDB v1.0 disabled successfully!");
     }
 
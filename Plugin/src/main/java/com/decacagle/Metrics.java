@@ -0,0 +1,44 @@
+package com.decacagle;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and gauges, safe to update from any thread. Served as plain "name value" lines by /metrics.
+ */
+public class Metrics {
+
+    private final Map<String, AtomicLong> values = new ConcurrentSkipListMap<>();
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long amount) {
+        values.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(amount);
+    }
+
+    public void set(String name, long value) {
+        values.computeIfAbsent(name, key -> new AtomicLong()).set(value);
+    }
+
+    public long get(String name) {
+        AtomicLong value = values.get(name);
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * Every value, one "name value" line each, sorted by name
+     */
+    public String render() {
+        StringBuilder result = new StringBuilder();
+
+        for (Map.Entry<String, AtomicLong> value : values.entrySet()) {
+            result.append(value.getKey()).append(' ').append(value.getValue().get()).append('\n');
+        }
+
+        return result.toString();
+    }
+
+}
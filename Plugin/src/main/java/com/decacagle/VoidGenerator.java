@@ -0,0 +1,64 @@
+package com.decacagle;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.generator.ChunkGenerator;
+import org.bukkit.generator.WorldInfo;
+
+import java.util.Random;
+
+/**
+ * Generates nothing but a single grass layer at the bottom of the world, which is all the data layout expects to
+ * find under its wool: no terrain noise, caves, decorations, structures or mobs. New data chunks cost next to
+ * nothing to generate and save.
+ */
+public class VoidGenerator extends ChunkGenerator {
+
+    @Override
+    public void generateSurface(WorldInfo worldInfo, Random random, int chunkX, int chunkZ, ChunkData chunkData) {
+        int floor = chunkData.getMinHeight();
+        chunkData.setRegion(0, floor, 0, 16, floor + 1, 16, Material.GRASS_BLOCK);
+    }
+
+    @Override
+    public boolean shouldGenerateNoise() {
+        return false;
+    }
+
+    @Override
+    public boolean shouldGenerateSurface() {
+        return false;
+    }
+
+    @Override
+    public boolean shouldGenerateCaves() {
+        return false;
+    }
+
+    @Override
+    public boolean shouldGenerateDecorations() {
+        return false;
+    }
+
+    @Override
+    public boolean shouldGenerateMobs() {
+        return false;
+    }
+
+    @Override
+    public boolean shouldGenerateStructures() {
+        return false;
+    }
+
+    @Override
+    public boolean shouldGenerateBedrock() {
+        return false;
+    }
+
+    @Override
+    public Location getFixedSpawnLocation(World world, Random random) {
+        return new Location(world, 0.5, world.getMinHeight() + 1, 0.5);
+    }
+
+}
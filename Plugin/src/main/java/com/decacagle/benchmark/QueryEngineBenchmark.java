@@ -0,0 +1,88 @@
+package com.decacagle.benchmark;
+
+import com.decacagle.data.ContentVersions;
+import com.decacagle.data.DataWorker;
+import com.decacagle.data.MemoryPageStore;
+import com.decacagle.data.MethodResponse;
+import com.decacagle.data.TableManager;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the query engine against a MemoryPageStore, without a server, and prints how long each kind of operation takes.
+ * Storage cost is left out, so the numbers show the engine's own overhead: chain walks, parsing and recycling.
+ * <p>
+ * Run with the plugin jar, paper-api and its dependencies (Gson among them) on the classpath. The plugin jar leaves
+ * out the server API, and DataUtilities needs it for its block tables. Maven can resolve the classpath:
+ * mvn -q package dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/DecaDB-1.0-SNAPSHOT.jar:$(cat cp.txt) com.decacagle.benchmark.QueryEngineBenchmark {rows} {slotsPerChunk}
+ */
+public class QueryEngineBenchmark {
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int slots = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        Logger logger = Logger.getLogger("DecaDB");
+        logger.setLevel(Level.WARNING);
+
+        MemoryPageStore store = new MemoryPageStore();
+        DataWorker worker = new DataWorker(logger, null, null, store);
+        TableManager tableManager = new TableManager(logger, null, worker, new ContentVersions());
+
+        check(tableManager.createTable("bench", slots));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            check(tableManager.insertRow("bench", "{\"userId\":" + (i % 10) + ",\"name\":\"user" + i + "\"}"));
+        }
+        report("INSERT", rows, start);
+
+        start = System.nanoTime();
+        for (int i = 1; i <= rows; i++) {
+            check(tableManager.readRow("bench", i));
+        }
+        report("SELECT {id}", rows, start);
+
+        int scans = Math.max(1, 100_000 / rows);
+
+        start = System.nanoTime();
+        for (int i = 0; i < scans; i++) {
+            check(tableManager.readTable("bench"));
+        }
+        report("SELECT *", scans, start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < scans; i++) {
+            check(tableManager.readTableWithCondition("bench", "userId", "" + (i % 10)));
+        }
+        report("SELECT * WHERE", scans, start);
+
+        start = System.nanoTime();
+        for (int i = 1; i <= rows; i++) {
+            check(tableManager.updateRow("bench", i, "{\"id\":" + i + ",\"userId\":" + (i % 10) + ",\"name\":\"renamed" + i + "\"}"));
+        }
+        report("UPDATE", rows, start);
+
+        start = System.nanoTime();
+        for (int i = 1; i <= rows; i++) {
+            check(tableManager.deleteRow("bench", i));
+        }
+        report("DELETE {id}", rows, start);
+
+        System.out.println("Regions left in store: " + store.getRegionCount());
+    }
+
+    private static void check(MethodResponse response) {
+        if (response.hasError()) {
+            throw new IllegalStateException(response.getStatusCode() + " " + response.getStatusMessage());
+        }
+    }
+
+    private static void report(String operation, int count, long startNanos) {
+        double millis = (System.nanoTime() - startNanos) / 1_000_000.0;
+        System.out.printf("%-16s %8d ops %10.1f ms %12.1f ops/s%n", operation, count, millis, count / (millis / 1000.0));
+    }
+
+}
@@ -0,0 +1,288 @@
+package com.decacagle.benchmark;
+
+import com.decacagle.data.DataUtilities;
+import com.decacagle.data.DataWorker;
+import com.decacagle.data.MemoryPageStore;
+import com.decacagle.data.PageStore;
+import com.decacagle.data.Region;
+import com.decacagle.data.WoolPageStore;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how many blocks per millisecond a PageStore writes, reads and deletes, for an 8 KB row and a 1 MB file.
+ * Both payloads go to scratch chunks at SCRATCH_Z_INDEX, far past any table, and are deleted again afterwards.
+ * <p>
+ * On the server, an op runs /decadb-benchmark, which compares the wool backend with and without block physics.
+ * Off the server, main() runs it against a MemoryPageStore. The plugin jar leaves out the server API, which this and
+ * DataUtilities' block tables need, so put paper-api and its dependencies on the classpath as well, such as with the
+ * classpath Maven resolves:
+ * mvn -q package dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/DecaDB-1.0-SNAPSHOT.jar:$(cat cp.txt) com.decacagle.benchmark.StorageBenchmark
+ * <p>
+ * Both also compare the wool codec on its own, turning 1 MB into blocks and back: the old string path, which built
+ * a hex string per character and matched on it, against the lookup tables in DataUtilities.
+ */
+public class StorageBenchmark {
+
+    public static final int SCRATCH_X_INDEX = 2;
+    public static final int SCRATCH_Z_INDEX = 100_000;
+
+    public static final int ROW_SIZE = 8 * 1024;
+    public static final int FILE_SIZE = 1024 * 1024;
+
+    private static final int CODEC_ROUNDS = 10;
+
+    public static void main(String[] args) {
+        for (String line : run(new MemoryPageStore(), "memory")) {
+            System.out.println(line);
+        }
+        for (String line : codecs()) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Encodes FILE_SIZE bytes to wool blocks and decodes them again, the old way and with the lookup tables,
+     * taking the best of CODEC_ROUNDS rounds each so the JIT has warmed up
+     * @return one line per codec and direction
+     */
+    public static List<String> codecs() {
+        byte[] content = payload(FILE_SIZE).getBytes(StandardCharsets.ISO_8859_1);
+        Material[] blocks = new Material[content.length * 2];
+        List<String> results = new ArrayList<>();
+
+        long legacyEncode = Long.MAX_VALUE, legacyDecode = Long.MAX_VALUE;
+        long tableEncode = Long.MAX_VALUE, tableDecode = Long.MAX_VALUE;
+
+        for (int round = 0; round < CODEC_ROUNDS; round++) {
+            long start = System.nanoTime();
+            legacyEncode(content, blocks);
+            legacyEncode = Math.min(legacyEncode, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            String decoded = legacyDecode(blocks);
+            legacyDecode = Math.min(legacyDecode, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            tableEncode(content, blocks);
+            tableEncode = Math.min(tableEncode, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            byte[] decodedBytes = tableDecode(blocks);
+            tableDecode = Math.min(tableDecode, System.nanoTime() - start);
+
+            if (decoded.length() != content.length || !Arrays.equals(decodedBytes, content)) {
+                results.add("codec round trip lost data in round " + round);
+                return results;
+            }
+        }
+
+        results.add(reportCodec("string codec", "encode", content.length, legacyEncode));
+        results.add(reportCodec("string codec", "decode", content.length, legacyDecode));
+        results.add(reportCodec("table codec", "encode", content.length, tableEncode));
+        results.add(reportCodec("table codec", "decode", content.length, tableDecode));
+
+        return results;
+    }
+
+    /**
+     * Runs the benchmark against the data world with block physics on and then off, followed by the codecs.
+     * Has to run on the main thread, which stalls the server for as long as the 1 MB writes take.
+     * @return one line per backend, payload and operation
+     */
+    public static List<String> wool(World world) {
+        WoolPageStore store = new WoolPageStore(world);
+        List<String> results = new ArrayList<>();
+
+        store.setApplyPhysics(true);
+        results.addAll(run(store, "wool, physics"));
+
+        store.setApplyPhysics(false);
+        results.addAll(run(store, "wool, no physics"));
+
+        results.addAll(codecs());
+
+        return results;
+    }
+
+    /**
+     * Writes, reads and deletes both payloads with the given store
+     * @return one line per payload and operation
+     */
+    public static List<String> run(PageStore store, String label) {
+        List<String> results = new ArrayList<>();
+
+        measure(store, label, "8 KB row", payload(ROW_SIZE), results);
+        measure(store, label, "1 MB file", payload(FILE_SIZE), results);
+
+        return results;
+    }
+
+    private static void measure(PageStore store, String label, String name, String body, List<String> results) {
+        // Split the payload the same way a spanning file write does, one chunk after another along X
+        List<String> pieces = new ArrayList<>();
+        int start = 0;
+
+        while (start < body.length()) {
+            int count = DataWorker.charsFittingInChunk(body, start, 0);
+            pieces.add(body.substring(start, start + count));
+            start += count;
+        }
+
+        long blocks = body.length() * 2L;
+
+        for (int i = 0; i < pieces.size(); i++) {
+            store.delete(scratchRegion(i));
+        }
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < pieces.size(); i++) {
+            store.write(pieces.get(i), scratchRegion(i));
+        }
+        results.add(report(label, name, "write", blocks, startNanos));
+
+        startNanos = System.nanoTime();
+        int readLength = 0;
+        for (int i = 0; i < pieces.size(); i++) {
+            readLength += store.read(scratchRegion(i)).length();
+        }
+        results.add(report(label, name, "read", blocks, startNanos));
+
+        if (readLength != body.length()) {
+            results.add(label + " " + name + ": read back " + readLength + " of " + body.length() + " characters");
+        }
+
+        startNanos = System.nanoTime();
+        for (int i = 0; i < pieces.size(); i++) {
+            store.delete(scratchRegion(i));
+        }
+        results.add(report(label, name, "delete", blocks, startNanos));
+    }
+
+    private static Region scratchRegion(int chunk) {
+        return Region.chunk(SCRATCH_X_INDEX + chunk, SCRATCH_Z_INDEX);
+    }
+
+    /**
+     * Printable ASCII like a JSON row or a base64 file, two blocks per character
+     */
+    private static String payload(int size) {
+        StringBuilder payload = new StringBuilder(size);
+
+        for (int i = 0; i < size; i++) {
+            payload.append((char) ('A' + i % 58));
+        }
+
+        return payload.toString();
+    }
+
+    private static void tableEncode(byte[] content, Material[] blocks) {
+        for (int i = 0; i < content.length; i++) {
+            blocks[i * 2] = DataUtilities.nibbleToBlock((content[i] & 0xFF) >>> 4);
+            blocks[i * 2 + 1] = DataUtilities.nibbleToBlock(content[i] & 0xF);
+        }
+    }
+
+    private static byte[] tableDecode(Material[] blocks) {
+        byte[] content = new byte[blocks.length / 2];
+
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ((DataUtilities.blockToNibble(blocks[i * 2]) << 4) | DataUtilities.blockToNibble(blocks[i * 2 + 1]));
+        }
+
+        return content;
+    }
+
+    // The codec as it was before the lookup tables, kept here to measure against
+
+    private static void legacyEncode(byte[] content, Material[] blocks) {
+        int blockOffset = 0;
+
+        for (byte b : content) {
+            String hex = Integer.toHexString((char) (b & 0xFF));
+
+            for (int j = 0; j < hex.length(); j++) {
+                blocks[blockOffset++] = legacyBlock(hex.charAt(j));
+            }
+        }
+    }
+
+    private static String legacyDecode(Material[] blocks) {
+        StringBuilder hexBuilder = new StringBuilder();
+        for (Material block : blocks) {
+            hexBuilder.append(legacyChar(block));
+        }
+
+        StringBuilder asciiBuilder = new StringBuilder();
+        for (int i = 0; i + 1 < hexBuilder.length(); i += 2) {
+            String hexByte = new String(new char[]{hexBuilder.charAt(i), hexBuilder.charAt(i + 1)});
+            asciiBuilder.append((char) Integer.parseInt(hexByte, 16));
+        }
+
+        return asciiBuilder.toString();
+    }
+
+    private static Material legacyBlock(char inputC) {
+        char c = ("" + inputC).toUpperCase().charAt(0);
+        return switch (c) {
+            case '0' -> Material.WHITE_WOOL;
+            case '1' -> Material.ORANGE_WOOL;
+            case '2' -> Material.MAGENTA_WOOL;
+            case '3' -> Material.LIGHT_BLUE_WOOL;
+            case '4' -> Material.YELLOW_WOOL;
+            case '5' -> Material.LIME_WOOL;
+            case '6' -> Material.PINK_WOOL;
+            case '7' -> Material.GRAY_WOOL;
+            case '8' -> Material.LIGHT_GRAY_WOOL;
+            case '9' -> Material.CYAN_WOOL;
+            case 'A' -> Material.PURPLE_WOOL;
+            case 'B' -> Material.BLUE_WOOL;
+            case 'C' -> Material.BROWN_WOOL;
+            case 'D' -> Material.GREEN_WOOL;
+            case 'E' -> Material.RED_WOOL;
+            case 'F' -> Material.BLACK_WOOL;
+            default -> Material.BEDROCK;
+        };
+    }
+
+    private static char legacyChar(Material m) {
+        return switch (m) {
+            case WHITE_WOOL -> '0';
+            case ORANGE_WOOL -> '1';
+            case MAGENTA_WOOL -> '2';
+            case LIGHT_BLUE_WOOL -> '3';
+            case YELLOW_WOOL -> '4';
+            case LIME_WOOL -> '5';
+            case PINK_WOOL -> '6';
+            case GRAY_WOOL -> '7';
+            case LIGHT_GRAY_WOOL -> '8';
+            case CYAN_WOOL -> '9';
+            case PURPLE_WOOL -> 'A';
+            case BLUE_WOOL -> 'B';
+            case BROWN_WOOL -> 'C';
+            case GREEN_WOOL -> 'D';
+            case RED_WOOL -> 'E';
+            case BLACK_WOOL -> 'F';
+            default -> 'n';
+        };
+    }
+
+    private static String reportCodec(String label, String operation, long bytes, long nanos) {
+        double millis = Math.max(nanos / 1_000_000.0, 0.001);
+        return String.format("%-24s %-7s %9d bytes %10.1f ms %8.2f ns/byte %10.1f MB/s", label, operation, bytes, millis,
+                (double) nanos / bytes, bytes / 1_048_576.0 / (millis / 1000.0));
+    }
+
+    private static String report(String label, String name, String operation, long blocks, long startNanos) {
+        double millis = Math.max((System.nanoTime() - startNanos) / 1_000_000.0, 0.001);
+        return String.format("%-24s %-10s %-7s %9d blocks %10.1f ms %12.1f blocks/ms", label, name, operation, blocks, millis, blocks / millis);
+    }
+
+}
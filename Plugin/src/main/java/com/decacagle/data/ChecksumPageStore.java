@@ -0,0 +1,295 @@
+package com.decacagle.data;
+
+import com.decacagle.DecaDB;
+import com.decacagle.Metrics;
+import org.bukkit.Chunk;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Wraps another PageStore and keeps a CRC32 of every region it writes in the chunk's PersistentDataContainer,
+ * keyed "crc32_{baseLayer}_{layers}" next to the region itself. Reads are checked against it, so wool blocks broken
+ * or replaced by players are reported instead of silently turning into bad data.
+ * <p>
+ * The checksum covers the values of the content's hex digits, exactly what the wool blocks hold whether they were
+ * written as text or bytes, and is stored together with their count so a writeAt can patch it from the old and new
+ * characters alone (CRC32 is linear), without reading the rest of the region.
+ */
+public class ChecksumPageStore implements PageStore {
+
+    // Checksums from before they covered digit values were of the digits' characters, so they go under a new key
+    private static final String KEY_PREFIX = "crc32_";
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+            }
+            CRC_TABLE[n] = c;
+        }
+    }
+
+    private Logger logger;
+    private World world;
+    private DecaDB plugin;
+    private PageStore store;
+    private Metrics metrics;
+
+    public ChecksumPageStore(Logger logger, World world, DecaDB plugin, PageStore store, Metrics metrics) {
+        this.logger = logger;
+        this.world = world;
+        this.plugin = plugin;
+        this.store = store;
+        this.metrics = metrics;
+    }
+
+    public String read(Region region) {
+        String content = store.read(region);
+
+        // Stored content always reads back as two digits per character, whatever it was written as
+        verify(region, checksumOfBytes(ByteBuffer.wrap(content.getBytes(StandardCharsets.ISO_8859_1))));
+
+        return content;
+    }
+
+    public String readPrefix(Region region, int charCount) {
+        return store.readPrefix(region, charCount);
+    }
+
+    public byte[] readBytes(Region region) {
+        byte[] content = store.readBytes(region);
+        verify(region, checksumOfBytes(ByteBuffer.wrap(content)));
+
+        return content;
+    }
+
+    public void write(String body, Region region) {
+        store.write(body, region);
+        setChecksum(region, checksumOf(hexOf(body)));
+    }
+
+    public int readBytes(Region region, byte[] buffer) {
+        int length = store.readBytes(region, buffer);
+        verify(region, checksumOfBytes(ByteBuffer.wrap(buffer, 0, length)));
+
+        return length;
+    }
+
+    /**
+     * Part of a region can't be checked against the checksum of all of it, so only ranged reads covering the whole
+     * region are verified
+     */
+    public int readBytes(Region region, int byteOffset, byte[] buffer, int length) {
+        if (byteOffset == 0 && length >= region.capacity() / 2) {
+            return readBytes(region, buffer);
+        }
+
+        return store.readBytes(region, byteOffset, buffer, length);
+    }
+
+    public int byteLength(Region region) {
+        return store.byteLength(region);
+    }
+
+    public void writeBytes(ByteBuffer body, Region region) {
+        long checksum = checksumOfBytes(body.duplicate());
+        store.writeBytes(body, region);
+        setChecksum(region, checksum);
+    }
+
+    public void replace(String body, Region region) {
+        store.replace(body, region);
+        setChecksum(region, checksumOf(hexOf(body)));
+    }
+
+    public void writeAt(String text, Region region, int charOffset) {
+        PersistentDataContainer container = container(region);
+        Long stored = storedChecksum(container, region);
+
+        String old = stored == null ? "" : store.readPrefix(region, charOffset + text.length());
+
+        store.writeAt(text, region, charOffset);
+
+        if (stored == null) {
+            return;
+        }
+
+        int hexLength = (int) (stored >>> 32);
+        int hexOffset = charOffset * 2;
+        String oldHex = old.length() == charOffset + text.length() ? hexOf(old.substring(charOffset)) : "";
+        String newHex = hexOf(text);
+
+        if (oldHex.length() != newHex.length() || hexOffset + newHex.length() > hexLength) {
+            // The patch changed the content's length, which only a full rewrite knows; stop checking this region
+            container.remove(keyFor(region));
+            return;
+        }
+
+        // crc(new) = crc(old) ^ crc of (old ^ new) with no initial or final xor, zero-padded to the same length
+        int difference = 0;
+        for (int i = 0; i < newHex.length(); i++) {
+            int changed = Character.digit(oldHex.charAt(i), 16) ^ Character.digit(newHex.charAt(i), 16);
+            difference = CRC_TABLE[(difference ^ changed) & 0xFF] ^ (difference >>> 8);
+        }
+        for (int i = hexOffset + newHex.length(); i < hexLength; i++) {
+            difference = CRC_TABLE[difference & 0xFF] ^ (difference >>> 8);
+        }
+
+        int checksum = (int) stored.longValue() ^ difference;
+        container.set(keyFor(region), PersistentDataType.LONG, ((long) hexLength << 32) | (checksum & 0xFFFFFFFFL));
+    }
+
+    public void delete(Region region) {
+        store.delete(region);
+
+        PersistentDataContainer container = container(region);
+        for (NamespacedKey key : container.getKeys()) {
+            Region checked = regionFor(region, key, plugin);
+
+            if (checked != null && checked.overlaps(region)) {
+                container.remove(key);
+            }
+        }
+    }
+
+    public boolean isFull(Region region) {
+        return store.isFull(region);
+    }
+
+    public void prefetch(Region region) {
+        store.prefetch(region);
+    }
+
+    public void close() {
+        store.close();
+    }
+
+    // ==================== CHECKSUMS ====================
+
+    /**
+     * The CRC32 of the values of hex's digits, one per byte, together with their count: count in the high 32 bits,
+     * CRC in the low 32. Upper and lower case digits give the same checksum.
+     */
+    public static long checksumOf(String hex) {
+        int crc = 0xFFFFFFFF;
+
+        for (int i = 0; i < hex.length(); i++) {
+            crc = CRC_TABLE[(crc ^ Character.digit(hex.charAt(i), 16)) & 0xFF] ^ (crc >>> 8);
+        }
+
+        return ((long) hex.length() << 32) | (~crc & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The same checksum as checksumOf for the hex digits of the remaining bytes in content, two per byte
+     */
+    public static long checksumOfBytes(ByteBuffer content) {
+        int crc = 0xFFFFFFFF;
+        long digits = (long) content.remaining() * 2;
+
+        while (content.hasRemaining()) {
+            int b = content.get() & 0xFF;
+            crc = CRC_TABLE[(crc ^ (b >>> 4)) & 0xFF] ^ (crc >>> 8);
+            crc = CRC_TABLE[(crc ^ (b & 0xF)) & 0xFF] ^ (crc >>> 8);
+        }
+
+        return (digits << 32) | (~crc & 0xFFFFFFFFL);
+    }
+
+    public static String hexOf(String content) {
+        StringBuilder hex = new StringBuilder(content.length() * 2);
+
+        for (int i = 0; i < content.length(); i++) {
+            hex.append(DataUtilities.asciiToHex(content.charAt(i)));
+        }
+
+        return hex.toString();
+    }
+
+    /**
+     * The checksums kept in a chunk, for the regions of it that have one. Must be called on the main thread.
+     */
+    public static List<ChecksummedRegion> checksumsIn(Chunk chunk, DecaDB plugin) {
+        List<ChecksummedRegion> result = new ArrayList<>();
+        Region inChunk = Region.chunk(chunk.getX(), chunk.getZ() + 1);
+        PersistentDataContainer container = chunk.getPersistentDataContainer();
+
+        for (NamespacedKey key : container.getKeys()) {
+            Region region = regionFor(inChunk, key, plugin);
+            Long checksum = region == null ? null : container.get(key, PersistentDataType.LONG);
+
+            if (checksum != null) {
+                result.add(new ChecksummedRegion(region, checksum));
+            }
+        }
+
+        return result;
+    }
+
+    public record ChecksummedRegion(Region region, long checksum) {
+    }
+
+    /**
+     * Compares the checksum of what was just read with the stored one, if the region has one
+     */
+    private void verify(Region region, long checksum) {
+        Long stored = storedChecksum(container(region), region);
+
+        if (stored == null) {
+            return;
+        }
+
+        metrics.increment("integrity_reads_verified");
+
+        if (stored != checksum) {
+            metrics.increment("integrity_read_mismatches");
+            logger.severe("CORRUPTION: Checksum mismatch in region X:" + region.xIndex() + ", Z:" + region.zIndex()
+                    + ", layers " + region.baseLayer() + "-" + (region.baseLayer() + region.layers() - 1));
+        }
+    }
+
+    private void setChecksum(Region region, long checksum) {
+        container(region).set(keyFor(region), PersistentDataType.LONG, checksum);
+    }
+
+    private Long storedChecksum(PersistentDataContainer container, Region region) {
+        return container.get(keyFor(region), PersistentDataType.LONG);
+    }
+
+    private PersistentDataContainer container(Region region) {
+        return world.getChunkAt(region.xIndex(), region.zIndex() - 1).getPersistentDataContainer();
+    }
+
+    private NamespacedKey keyFor(Region region) {
+        return new NamespacedKey(plugin, KEY_PREFIX + region.baseLayer() + "_" + region.layers());
+    }
+
+    /**
+     * Parses one of our checksum keys back into the region it covers, in the same chunk as inChunk, or null for other keys
+     */
+    private static Region regionFor(Region inChunk, NamespacedKey key, DecaDB plugin) {
+        if (!key.getNamespace().equals(plugin.getName().toLowerCase()) || !key.getKey().startsWith(KEY_PREFIX)) {
+            return null;
+        }
+
+        String[] layers = key.getKey().substring(KEY_PREFIX.length()).split("_");
+
+        try {
+            return new Region(inChunk.xIndex(), inChunk.zIndex(), Integer.parseInt(layers[0]), Integer.parseInt(layers[1]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+}
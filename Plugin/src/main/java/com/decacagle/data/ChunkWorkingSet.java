@@ -0,0 +1,247 @@
+package com.decacagle.data;
+
+import com.decacagle.DecaDB;
+import com.decacagle.Metrics;
+import org.bukkit.World;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Wraps another PageStore and keeps the chunks it touches loaded with plugin chunk tickets, so the server doesn't
+ * unload data chunks just because no player is near them and the next read doesn't stall on a synchronous load.
+ * <p>
+ * Chunks at region x 0 hold the table and file catalogs and metadata, and those at x 1 on the table side hold the
+ * row start indexes. Nearly every query goes through them, so they are pinned for good, up to maxChunks of them.
+ * Every other chunk, including the first chunk of each file at x 1 on the file side, joins a least recently used
+ * working set of at most maxChunks chunks, and loses its ticket when it falls out of it.
+ * <p>
+ * The server doesn't count plugin chunk tickets: adding one twice does nothing, and removing it once unloads the
+ * chunk for the whole plugin. A storage migration has two working sets open over the same chunks, so tickets are
+ * counted here across every working set, and only the last one holding a chunk removes its ticket.
+ */
+public class ChunkWorkingSet implements PageStore {
+
+    private static final Map<Long, Integer> ticketHolders = new HashMap<>();
+
+    private Logger logger;
+    private World world;
+    private DecaDB plugin;
+    private PageStore store;
+    private Metrics metrics;
+
+    private final int maxChunks;
+    private final Set<Long> pinned = new HashSet<>();
+    private final LinkedHashMap<Long, Boolean> recent = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Long> loading = new HashSet<>();
+    private boolean closed = false;
+
+    public ChunkWorkingSet(Logger logger, World world, DecaDB plugin, PageStore store, int maxChunks, Metrics metrics) {
+        this.logger = logger;
+        this.world = world;
+        this.plugin = plugin;
+        this.store = store;
+        this.maxChunks = maxChunks;
+        this.metrics = metrics;
+
+        // The table and file catalogs are needed right away, so start loading them now
+        prefetch(Region.chunk(0, 1));
+        prefetch(Region.chunk(0, -1));
+    }
+
+    public String read(Region region) {
+        touch(region);
+        return store.read(region);
+    }
+
+    public String readPrefix(Region region, int charCount) {
+        touch(region);
+        return store.readPrefix(region, charCount);
+    }
+
+    public byte[] readBytes(Region region) {
+        touch(region);
+        return store.readBytes(region);
+    }
+
+    public int readBytes(Region region, byte[] buffer) {
+        touch(region);
+        return store.readBytes(region, buffer);
+    }
+
+    public int readBytes(Region region, int byteOffset, byte[] buffer, int length) {
+        touch(region);
+        return store.readBytes(region, byteOffset, buffer, length);
+    }
+
+    public int byteLength(Region region) {
+        touch(region);
+        return store.byteLength(region);
+    }
+
+    public void writeBytes(ByteBuffer body, Region region) {
+        touch(region);
+        store.writeBytes(body, region);
+    }
+
+    public void write(String body, Region region) {
+        touch(region);
+        store.write(body, region);
+    }
+
+    public void replace(String body, Region region) {
+        touch(region);
+        store.replace(body, region);
+    }
+
+    public void writeAt(String text, Region region, int charOffset) {
+        touch(region);
+        store.writeAt(text, region, charOffset);
+    }
+
+    public void delete(Region region) {
+        touch(region);
+        store.delete(region);
+    }
+
+    public boolean isFull(Region region) {
+        touch(region);
+        return store.isFull(region);
+    }
+
+    /**
+     * Gives up every ticket this working set holds, leaving those another working set still holds in place
+     */
+    public void close() {
+        for (long key : pinned) {
+            removeTicket(key);
+        }
+        for (long key : recent.keySet()) {
+            removeTicket(key);
+        }
+
+        pinned.clear();
+        recent.clear();
+        closed = true;
+        metrics.set("working_set_chunks", 0);
+
+        store.close();
+    }
+
+    /**
+     * Starts loading the region's chunk in the background if it isn't loaded yet. It joins the working set once loaded,
+     * so a read that comes after the load finishes doesn't block. Must be called on the main thread.
+     */
+    public void prefetch(Region region) {
+        int chunkX = region.xIndex();
+        int chunkZ = region.zIndex() - 1;
+        long key = chunkKey(chunkX, chunkZ);
+
+        // Cheap checks first, read-ahead asks about the same chunks over and over
+        if (pinned.contains(key) || recent.containsKey(key) || loading.contains(key) || world.isChunkLoaded(chunkX, chunkZ)) {
+            return;
+        }
+
+        metrics.increment("working_set_prefetches");
+        loading.add(key);
+
+        // Paper completes chunk futures on the main thread. Chunks that were never generated hold no data, so they're
+        // left alone rather than generated only to be read as empty
+        world.getChunkAtAsync(chunkX, chunkZ, false).thenAccept(chunk -> {
+            loading.remove(key);
+
+            if (chunk != null && !closed) {
+                touch(region);
+            }
+        });
+    }
+
+    /**
+     * Tickets the region's chunk, and drops the ticket of the least recently used chunk if the working set is full
+     */
+    private void touch(Region region) {
+        int chunkX = region.xIndex();
+        int chunkZ = region.zIndex() - 1;
+        long key = chunkKey(chunkX, chunkZ);
+
+        if (pinned.contains(key) || recent.get(key) != null) {
+            metrics.increment("working_set_hits");
+            return;
+        }
+
+        if (!world.isChunkLoaded(chunkX, chunkZ)) {
+            // Whatever called us is about to load it synchronously
+            metrics.increment("working_set_sync_loads");
+        }
+
+        metrics.increment("working_set_misses");
+        addTicket(key);
+
+        if (isIndexChunk(region) && pinned.size() < maxChunks) {
+            pinned.add(key);
+            logger.fine("Pinned data chunk X:" + chunkX + ", Z:" + chunkZ);
+        } else {
+            recent.put(key, true);
+
+            Iterator<Long> eldest = recent.keySet().iterator();
+            while (recent.size() > maxChunks) {
+                long evicted = eldest.next();
+                eldest.remove();
+                removeTicket(evicted);
+            }
+        }
+
+        metrics.set("working_set_chunks", pinned.size() + recent.size());
+    }
+
+    /**
+     * Whether the region holds a catalog, metadata or a row start index rather than rows or file content
+     */
+    private static boolean isIndexChunk(Region region) {
+        return region.xIndex() == 0 || (region.xIndex() == 1 && region.zIndex() > 0);
+    }
+
+    private void addTicket(long key) {
+        synchronized (ticketHolders) {
+            if (ticketHolders.merge(key, 1, Integer::sum) == 1) {
+                world.addPluginChunkTicket(chunkX(key), chunkZ(key), plugin);
+            }
+        }
+    }
+
+    private void removeTicket(long key) {
+        synchronized (ticketHolders) {
+            Integer holders = ticketHolders.get(key);
+
+            if (holders == null) {
+                return;
+            }
+
+            if (holders > 1) {
+                ticketHolders.put(key, holders - 1);
+            } else {
+                ticketHolders.remove(key);
+                world.removePluginChunkTicket(chunkX(key), chunkZ(key), plugin);
+            }
+        }
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private static int chunkX(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int chunkZ(long key) {
+        return (int) key;
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.decacagle.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts the changes made to every file and table, so responses can carry validators (ETag and Last-Modified)
+ * and conditional requests can be answered without reading the world. Whatever writes a file or table bumps its
+ * counter; raw chunk writes and storage migrations can touch anything, so they bump a counter shared by all of them.
+ * <p>
+ * Counters live in memory and start over whenever the server starts. The time it started is part of every version,
+ * so a validator handed out before a restart never matches one handed out after it.
+ * <p>
+ * Safe to use from any thread.
+ */
+public class ContentVersions {
+
+    // On a whole second, so content that hasn't changed since can be matched by If-Modified-Since, which only has seconds
+    private final long started = System.currentTimeMillis() / 1000 * 1000;
+
+    private final Map<Integer, Counter> files = new HashMap<>();
+    private final Map<String, Counter> tables = new HashMap<>();
+    private final Counter everything = new Counter();
+
+    public synchronized Version file(int fileIndex) {
+        return versionOf(files.get(fileIndex));
+    }
+
+    public synchronized Version table(String tableTitle) {
+        return versionOf(tables.get(tableTitle));
+    }
+
+    public synchronized void fileChanged(int fileIndex) {
+        files.computeIfAbsent(fileIndex, index -> new Counter()).bump();
+    }
+
+    public synchronized void tableChanged(String tableTitle) {
+        tables.computeIfAbsent(tableTitle, title -> new Counter()).bump();
+    }
+
+    /**
+     * For changes that could have touched any file or table
+     */
+    public synchronized void everythingChanged() {
+        everything.bump();
+    }
+
+    private Version versionOf(Counter counter) {
+        long count = everything.count + (counter == null ? 0 : counter.count);
+        long modified = Math.max(started, Math.max(everything.modified, counter == null ? 0 : counter.modified));
+
+        return new Version(started, count, modified);
+    }
+
+    private static class Counter {
+
+        private long count = 0;
+        private long modified = 0;
+
+        void bump() {
+            count++;
+            modified = System.currentTimeMillis();
+        }
+
+    }
+
+    /**
+     * A file or table as it is at some point. modified is when it last changed, in epoch milliseconds, or when the
+     * server started if it hasn't changed since. It is kept to the millisecond, so If-Modified-Since, which only
+     * has whole seconds, never matches a change made partway through the second it names.
+     */
+    public record Version(long started, long count, long modified) {
+
+        /**
+         * A strong entity tag for this version of the named resource
+         */
+        public String etag(String resource) {
+            return "\"" + resource + "-" + Long.toString(started, 36) + "-" + count + "\"";
+        }
+
+    }
+
+}
@@ -7,10 +7,13 @@ import org.bukkit.Material;
 
 import java.math.BigInteger;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
+import java.util.Arrays;
 
 public final class DataUtilities {
 
@@ -21,8 +24,122 @@ public final class DataUtilities {
     public static final int MAX_TABLE_INDEX = 50000;
     public static final int MAX_ROW_INDEX = 100000;
 
+    // Rows start with a fixed-width header "{last},{next};" with both pointers zero-padded to ROW_POINTER_WIDTH digits,
+    // so a pointer always lives at the same blocks and can be rewritten without touching the rest of the row
+    public static final int ROW_POINTER_WIDTH = 6;
+    public static final int ROW_HEADER_LENGTH = ROW_POINTER_WIDTH * 2 + 2;
+    public static final int ROW_LAST_OFFSET = 0;
+    public static final int ROW_NEXT_OFFSET = ROW_POINTER_WIDTH + 1;
+
+    // Optional fields that can follow the title in table metadata
+    public static final String TABLE_SLOTS_PREFIX = "slots:";
+    public static final String TABLE_PROTECTION_PREFIX = "protected:";
+
+    // A chunk is 384 layers tall, so it can be split into any divisor of 384 slots
+    public static final int MAX_SLOTS_PER_CHUNK = 384;
+
+    // Optional fields that can follow the mime in file metadata: whether the file is stored compressed, how the
+    // file's data is stored, base64 text for files without it or bytes for raw files, the file's size in bytes
+    // once decoded, for files stored since it was recorded, and the SHA-256 of those bytes for mirrored files
+    public static final String FILE_COMPRESSION_PREFIX = "compression:";
+    public static final String FILE_COMPRESSION_GZIP = "gzip";
+    public static final String FILE_ENCODING_PREFIX = "encoding:";
+    public static final String FILE_ENCODING_BASE64 = "base64";
+    public static final String FILE_ENCODING_RAW = "raw";
+    public static final String FILE_SIZE_PREFIX = "size:";
+    public static final String FILE_HASH_PREFIX = "sha256:";
+
+    // Lookup tables for the wool codec, so encoding and decoding don't allocate or parse anything per block:
+    // the wool block for each hex digit, the digit for each Material by ordinal (-1 for anything that isn't wool),
+    // and the hex string of every character up to 0xFF
+    private static final Material[] NIBBLE_BLOCKS = {
+            Material.WHITE_WOOL, Material.ORANGE_WOOL, Material.MAGENTA_WOOL, Material.LIGHT_BLUE_WOOL,
+            Material.YELLOW_WOOL, Material.LIME_WOOL, Material.PINK_WOOL, Material.GRAY_WOOL,
+            Material.LIGHT_GRAY_WOOL, Material.CYAN_WOOL, Material.PURPLE_WOOL, Material.BLUE_WOOL,
+            Material.BROWN_WOOL, Material.GREEN_WOOL, Material.RED_WOOL, Material.BLACK_WOOL
+    };
+    private static final byte[] BLOCK_NIBBLES = new byte[Material.values().length];
+    private static final String[] HEX_STRINGS = new String[256];
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    static {
+        Arrays.fill(BLOCK_NIBBLES, (byte) -1);
+        for (int nibble = 0; nibble < NIBBLE_BLOCKS.length; nibble++) {
+            BLOCK_NIBBLES[NIBBLE_BLOCKS[nibble].ordinal()] = (byte) nibble;
+        }
+
+        for (int c = 0; c < HEX_STRINGS.length; c++) {
+            HEX_STRINGS[c] = String.format("%02x", c);
+        }
+    }
+
+    /**
+     * The two hex digits a stored character is written as. Stored content is one byte per character, so text has
+     * to go through encodeText first.
+     */
     public static String asciiToHex(char c) {
-        return Integer.toHexString((int) (c));
+        return HEX_STRINGS[checkByte(c)];
+    }
+
+    /**
+     * How many hex digits, and so wool blocks, asciiToHex(c) takes, without building the string
+     */
+    public static int hexLength(char c) {
+        checkByte(c);
+        return 2;
+    }
+
+    private static int checkByte(char c) {
+        if (c > 0xFF) {
+            throw new IllegalArgumentException(String.format("U+%04X isn't a byte, text has to be stored through encodeText", (int) c));
+        }
+        return c;
+    }
+
+    /**
+     * How many bytes c takes in UTF-8. Each half of a surrogate pair counts for half of the pair's four bytes.
+     */
+    public static int utf8Length(char c) {
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800 || Character.isSurrogate(c)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * Turns text into what is stored: its UTF-8 bytes, one character each. ASCII text, which is nearly all of it,
+     * comes back as it is.
+     */
+    public static String encodeText(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return new String(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+            }
+        }
+
+        return text;
+    }
+
+    /**
+     * Turns stored content back into text. Content that isn't valid UTF-8 was stored before text was encoded,
+     * one Latin-1 character per byte, and comes back as it is.
+     */
+    public static String decodeText(String stored) {
+        for (int i = 0; i < stored.length(); i++) {
+            if (stored.charAt(i) >= 0x80) {
+                try {
+                    return StandardCharsets.UTF_8.newDecoder()
+                            .decode(ByteBuffer.wrap(stored.getBytes(StandardCharsets.ISO_8859_1)))
+                            .toString();
+                } catch (CharacterCodingException e) {
+                    return stored;
+                }
+            }
+        }
+
+        return stored;
     }
 
     /**
@@ -32,32 +149,27 @@ public final class DataUtilities {
         return ((char) (Integer.parseInt(hex, 16)));
     }
 
+    /**
+     * The wool block encoding a hex digit value from 0 to 15
+     */
+    public static Material nibbleToBlock(int nibble) {
+        return NIBBLE_BLOCKS[nibble];
+    }
+
+    /**
+     * The hex digit value a block encodes, or -1 if it isn't wool
+     */
+    public static int blockToNibble(Material m) {
+        return BLOCK_NIBBLES[m.ordinal()];
+    }
+
     /**
      * Takes char (inputC) and returns the corresponding Material for encoding or whatever
-     * Returns null if given invalid char
+     * Returns bedrock if given invalid char
      */
     public static Material getCorrespondingBlock(char inputC) {
-        char c = ("" + inputC).toUpperCase().charAt(0);
-        return switch (c) {
-            case '0' -> Material.WHITE_WOOL;
-            case '1' -> Material.ORANGE_WOOL;
-            case '2' -> Material.MAGENTA_WOOL;
-            case '3' -> Material.LIGHT_BLUE_WOOL;
-            case '4' -> Material.YELLOW_WOOL;
-            case '5' -> Material.LIME_WOOL;
-            case '6' -> Material.PINK_WOOL;
-            case '7' -> Material.GRAY_WOOL;
-            case '8' -> Material.LIGHT_GRAY_WOOL;
-            case '9' -> Material.CYAN_WOOL;
-            case 'A' -> Material.PURPLE_WOOL;
-            case 'B' -> Material.BLUE_WOOL;
-            case 'C' -> Material.BROWN_WOOL;
-            case 'D' -> Material.GREEN_WOOL;
-            case 'E' -> Material.RED_WOOL;
-            case 'F' -> Material.BLACK_WOOL;
-            default -> Material.BEDROCK;
-        };
-
+        int nibble = Character.digit(inputC, 16);
+        return nibble < 0 ? Material.BEDROCK : NIBBLE_BLOCKS[nibble];
     }
 
     /**
@@ -65,36 +177,12 @@ public final class DataUtilities {
      * Returns 'n' if given invalid Material
      */
     public static char getCorrespondingChar(Material m) {
-        return switch (m) {
-            case WHITE_WOOL -> '0';
-            case ORANGE_WOOL -> '1';
-            case MAGENTA_WOOL -> '2';
-            case LIGHT_BLUE_WOOL -> '3';
-            case YELLOW_WOOL -> '4';
-            case LIME_WOOL -> '5';
-            case PINK_WOOL -> '6';
-            case GRAY_WOOL -> '7';
-            case LIGHT_GRAY_WOOL -> '8';
-            case CYAN_WOOL -> '9';
-            case PURPLE_WOOL -> 'A';
-            case BLUE_WOOL -> 'B';
-            case BROWN_WOOL -> 'C';
-            case GREEN_WOOL -> 'D';
-            case RED_WOOL -> 'E';
-            case BLACK_WOOL -> 'F';
-            default -> 'n';
-        };
-
+        int nibble = BLOCK_NIBBLES[m.ordinal()];
+        return nibble < 0 ? 'n' : HEX_DIGITS[nibble];
     }
 
     public static boolean isWoolBlock(Material m) {
-        return switch (m) {
-            case WHITE_WOOL, ORANGE_WOOL, BLACK_WOOL, RED_WOOL, GREEN_WOOL, BROWN_WOOL, BLUE_WOOL, PURPLE_WOOL,
-                 CYAN_WOOL, LIGHT_GRAY_WOOL, GRAY_WOOL, PINK_WOOL, LIME_WOOL, YELLOW_WOOL, LIGHT_BLUE_WOOL,
-                 MAGENTA_WOOL -> true;
-            default -> false;
-        };
-
+        return BLOCK_NIBBLES[m.ordinal()] >= 0;
     }
 
     public static String addValueToJSON(int value, String key, String JSON) {
@@ -134,19 +222,199 @@ public final class DataUtilities {
     }
 
     public static String parseTableProtectionFlags(String metadata) {
-        return metadata.split(",")[3].split(":")[1].toLowerCase();
+        return parseTableField(metadata, TABLE_PROTECTION_PREFIX).toLowerCase();
+    }
+
+    /**
+     * Number of slots each row chunk of the table is split into, 1 for tables created without one
+     */
+    public static int parseTableSlots(String metadata) {
+        String slots = parseTableField(metadata, TABLE_SLOTS_PREFIX);
+
+        try {
+            return slots == null ? 1 : Integer.parseInt(slots);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Finds an optional table metadata field such as "protected:crud" by its prefix and returns its value,
+     * or null if the table doesn't have it
+     */
+    public static String parseTableField(String metadata, String prefix) {
+        String[] fields = metadata.split(",");
+
+        for (int i = 3; i < fields.length; i++) {
+            if (fields[i].startsWith(prefix)) {
+                return fields[i].substring(prefix.length());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Rebuilds table metadata with new last and next indexes, keeping the title and every optional field
+     */
+    public static String relinkTableMetadata(String metadata, int last, int next) {
+        String[] fields = metadata.split(",", 3);
+        return last + "," + next + "," + fields[2];
+    }
+
+    /**
+     * Rebuilds table metadata without the optional field starting with prefix
+     */
+    public static String removeTableField(String metadata, String prefix) {
+        String[] fields = metadata.split(",");
+        StringBuilder builder = new StringBuilder(fields[0] + "," + fields[1] + "," + fields[2]);
+
+        for (int i = 3; i < fields.length; i++) {
+            if (!fields[i].startsWith(prefix)) {
+                builder.append(",").append(fields[i]);
+            }
+        }
+
+        return builder.toString();
     }
 
     public static String fileMetadataBuilder(String title, String mime, int last, int next) {
         return last + "," + next + "," + title + "," + mime;
     }
 
+    public static String fileMetadataBuilder(String title, String mime, int last, int next, String compression,
+                                             String encoding, long size, String hash) {
+        String metadata = fileMetadataBuilder(title, mime, last, next);
+
+        if (compression != null) {
+            metadata += "," + FILE_COMPRESSION_PREFIX + compression;
+        }
+
+        if (!encoding.equals(FILE_ENCODING_BASE64)) {
+            metadata += "," + FILE_ENCODING_PREFIX + encoding;
+        }
+
+        metadata += "," + FILE_SIZE_PREFIX + size;
+
+        if (hash != null) {
+            metadata += "," + FILE_HASH_PREFIX + hash;
+        }
+
+        return metadata;
+    }
+
+    /**
+     * How the file's data is stored, base64 for files without an encoding field
+     */
+    public static String parseFileEncoding(String metadata) {
+        String encoding = parseFileField(metadata, FILE_ENCODING_PREFIX);
+        return encoding == null ? FILE_ENCODING_BASE64 : encoding;
+    }
+
+    /**
+     * How the file's bytes are compressed, or null if they aren't
+     */
+    public static String parseFileCompression(String metadata) {
+        return parseFileField(metadata, FILE_COMPRESSION_PREFIX);
+    }
+
+    /**
+     * Whether files of this mime are text that compresses well, such as HTML, CSS, JavaScript and JSON.
+     * Images, video and archives are compressed already.
+     */
+    public static boolean isCompressibleMime(String mime) {
+        String type = mime.split(";")[0].trim().toLowerCase();
+
+        return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml") || type.equals("application/json")
+                || type.equals("application/javascript") || type.equals("application/xml") || type.equals("application/wasm");
+    }
+
+    /**
+     * The file's size in bytes once decoded, or -1 for files stored before it was recorded. For compressed files
+     * it is the size of the compressed bytes.
+     */
+    public static long parseFileSize(String metadata) {
+        String size = parseFileField(metadata, FILE_SIZE_PREFIX);
+
+        try {
+            return size == null ? -1 : Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The SHA-256 of the file's decoded bytes as lowercase hex, or null for files stored without one
+     */
+    public static String parseFileHash(String metadata) {
+        return parseFileField(metadata, FILE_HASH_PREFIX);
+    }
+
+    /**
+     * Finds an optional file metadata field such as "encoding:raw" by its prefix and returns its value,
+     * or null if the file doesn't have it
+     */
+    public static String parseFileField(String metadata, String prefix) {
+        String[] fields = metadata.split(",");
+
+        for (int i = 4; i < fields.length; i++) {
+            if (fields[i].startsWith(prefix)) {
+                return fields[i].substring(prefix.length());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Rebuilds file metadata with new last and next indexes, keeping the title, mime and every optional field
+     */
+    public static String relinkFileMetadata(String metadata, int last, int next) {
+        String[] fields = metadata.split(",", 3);
+        return last + "," + next + "," + fields[2];
+    }
+
     public static String tableMetadataBuilder(String title, int last, int next) {
         return last + "," + next + "," + title;
     }
 
+    public static String tableSlotsBuilder(int slotsPerChunk) {
+        return TABLE_SLOTS_PREFIX + slotsPerChunk;
+    }
+
+    /**
+     * Checks that a chunk can be split into slotsPerChunk equal slots of whole layers
+     */
+    public static boolean isValidSlotCount(int slotsPerChunk) {
+        return slotsPerChunk >= 1 && slotsPerChunk <= MAX_SLOTS_PER_CHUNK && MAX_SLOTS_PER_CHUNK % slotsPerChunk == 0;
+    }
+
     public static String rowBuilder(int last, int next, String content) {
-        return last + "," + next + ";" + content;
+        return rowPointerBuilder(last) + "," + rowPointerBuilder(next) + ";" + content;
+    }
+
+    public static String rowPointerBuilder(int index) {
+        return String.format("%0" + ROW_POINTER_WIDTH + "d", index);
+    }
+
+    /**
+     * Checks whether the row starts with a fixed-width header. Rows written before the header was fixed-width
+     * don't, and have to be rewritten in full to change a pointer.
+     */
+    public static boolean hasFixedRowHeader(String row) {
+        if (row.length() < ROW_HEADER_LENGTH
+                || row.charAt(ROW_NEXT_OFFSET - 1) != ','
+                || row.charAt(ROW_HEADER_LENGTH - 1) != ';') {
+            return false;
+        }
+
+        for (int i = 0; i < ROW_POINTER_WIDTH; i++) {
+            if (!Character.isDigit(row.charAt(ROW_LAST_OFFSET + i)) || !Character.isDigit(row.charAt(ROW_NEXT_OFFSET + i))) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     public static String contextNameBuilder(String fileTitle) {
@@ -155,11 +423,13 @@ public final class DataUtilities {
     }
 
     public static boolean isValidFileMetadata(String metadata) {
-        return !metadata.isEmpty() && metadata.split(",").length == 4;
+        // last, next, title and mime, then the optional compression, encoding, size and hash fields
+        return !metadata.isEmpty() && metadata.split(",").length >= 4 && metadata.split(",").length <= 8;
     }
 
     public static boolean isValidTableMetadata(String metadata) {
-        return !metadata.isEmpty() && (metadata.split(",").length == 3 || metadata.split(",").length == 4);
+        // last, next and title, then up to two optional fields (slots and protection)
+        return !metadata.isEmpty() && metadata.split(",").length >= 3 && metadata.split(",").length <= 5;
     }
 
     /**
@@ -291,6 +561,27 @@ public final class DataUtilities {
         }
     }
 
+    /**
+     * Checks key == target and, if secondKey is not null, secondKey == secondTarget against a single parse of content
+     */
+    public static boolean meetsConditions(String content, String key, String target, String secondKey, String secondTarget) {
+        try {
+            JsonObject obj = JsonParser.parseString(content).getAsJsonObject();
+
+            if (!obj.has(key) || !obj.get(key).getAsString().equals(target)) {
+                return false;
+            }
+
+            if (secondKey != null) {
+                return obj.has(secondKey) && obj.get(secondKey).getAsString().equals(secondTarget);
+            }
+
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     /**
      * Takes an array of JSON objects as a String and returns a new list that only contains the objects where the object's key == target
      */
@@ -299,9 +590,9 @@ public final class DataUtilities {
             JsonArray arr = JsonParser.parseString(json).getAsJsonArray();
 
             for (int i = 0; i < arr.size(); i++) {
-                String obj = arr.get(i).getAsString();
+                JsonObject obj = arr.get(i).getAsJsonObject();
 
-                if (!meetsCondition(obj, key, target)) {
+                if (!obj.has(key) || !obj.get(key).getAsString().equals(target)) {
                     arr.remove(i);
                     i--;
                 }
@@ -326,14 +617,11 @@ public final class DataUtilities {
     }
 
     public static String tableProtectionBuilder(String rules) {
-        return "protected:" + rules;
+        return TABLE_PROTECTION_PREFIX + rules;
     }
 
     public static String generateProtectedMetadata(String currentMetadata, String protectionField) {
-        int last = parseLastIndexTable(currentMetadata);
-        int next = parseNextIndexTable(currentMetadata);
-        String title = parseTitle(currentMetadata);
-        return tableMetadataBuilder(title, last, next) + "," + protectionField;
+        return removeTableField(currentMetadata, TABLE_PROTECTION_PREFIX) + "," + protectionField;
     }
 
     public static MethodResponse areValidProtectionFlags(String protection) {
@@ -398,6 +686,6 @@ public final class DataUtilities {
     }
 
     public static boolean tableHasProtectionFlags(String metadata) {
-        return metadata.split(",").length == 4;
+        return parseTableField(metadata, TABLE_PROTECTION_PREFIX) != null;
     }
 }
\ No newline at end of file
@@ -1,13 +1,23 @@
 package com.decacagle.data;
 
 import com.decacagle.DecaDB;
-import org.bukkit.Material;
+import org.bukkit.Bukkit;
 import org.bukkit.World;
-import org.bukkit.block.Block;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
-import static com.decacagle.data.DataUtilities.*;
+import static com.decacagle.data.DataUtilities.decodeText;
+import static com.decacagle.data.DataUtilities.encodeText;
+import static com.decacagle.data.DataUtilities.hexLength;
+import static com.decacagle.data.DataUtilities.utf8Length;
 
 public class DataWorker {
 
@@ -15,287 +25,769 @@ public class DataWorker {
     private World world;
     private DecaDB plugin;
 
+    private WriteAheadLog wal;
+    private long currentTransaction = 0;
+    private int transactionDepth = 0;
+    private boolean transactionLogged = false;
+    private List<WriteAheadLog.Acknowledgement> transactionCallbacks = new ArrayList<>();
+
+    // Region contents that have been logged and acknowledged but not yet written as blocks
+    private LinkedHashMap<Region, String> pendingWrites = new LinkedHashMap<>();
+
+    // Where region content actually lives, wool blocks unless another backend is configured
+    private PageStore store;
+    private boolean writeBehind = false;
+    private long flushBudgetNanos = 0;
+    private int readAheadChunks = 0;
+
+    // Upper bound on how many chunks content spanning several chunks may cover, so a corrupt chain can't read forever
+    public static final int MAX_SPANNING_CHUNKS = 4096;
+
+    // Bytes take two blocks each, so this many fill a chunk when binary content spans several
+    public static final int BYTES_PER_CHUNK = Region.chunk(0, 0).capacity() / 2;
+
     public DataWorker(Logger logger, World world, DecaDB plugin) {
+        this(logger, world, plugin, new WoolPageStore(world));
+    }
+
+    /**
+     * Creates a worker on top of store. world and plugin may be null when running off-server, for example on a
+     * MemoryPageStore, as long as the write-ahead log and write-behind buffer, which need the server, stay off.
+     */
+    public DataWorker(Logger logger, World world, DecaDB plugin, PageStore store) {
         this.logger = logger;
         this.world = world;
         this.plugin = plugin;
+        this.store = store;
     }
 
-    public boolean writeToChunk(String body, int xIndex, int zIndex, boolean writeInfinitely, int direction) {
+    /**
+     * Sets how many chunks ahead spanning reads and table scans ask the store to load in the background
+     */
+    public void setReadAhead(int chunks) {
+        this.readAheadChunks = chunks;
+    }
 
-        int indexX = xIndex * 16;
-        int indexZ = -1 + (zIndex * 16);
+    /**
+     * Asks the store to start loading the chunks from xIndex onwards along direction, up to the read-ahead distance,
+     * so they are ready by the time a scan gets to them. chunks is how many chunks the content is known to still
+     * hold from xIndex on, so nothing past its end is loaded.
+     */
+    public void readAhead(int xIndex, int zIndex, int direction, int chunks) {
+        for (int i = 0; i < Math.min(readAheadChunks, chunks); i++) {
+            store.prefetch(Region.chunk(xIndex + i * direction, zIndex));
+        }
+    }
 
-        // Build hex string from ASCII
-        StringBuilder res = new StringBuilder();
+    public PageStore getStore() {
+        return store;
+    }
 
-        for (int i = 0; i < body.length(); i++) {
-            res.append(asciiToHex(body.charAt(i)));
+    /**
+     * Switches the backend regions are read from and written to. Buffered writes are flushed to the old backend first,
+     * then it is closed.
+     */
+    public void setStore(PageStore store) {
+        flushAllPendingWrites();
+
+        PageStore previous = this.store;
+        this.store = store;
+        previous.close();
+    }
+
+    // ==================== WRITE-AHEAD LOG ====================
+
+    public void setWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    /**
+     * Re-applies committed operations read from the write-ahead log, in order, without logging them again
+     */
+    public void replay(List<WriteAheadLog.LoggedOperation> operations) {
+        for (WriteAheadLog.LoggedOperation operation : operations) {
+            Region region = new Region(operation.x, operation.z, operation.baseLayer, operation.layers);
+
+            switch (operation.op) {
+                case WriteAheadLog.OP_WRITE -> applyWrite(operation.body, region, operation.infinite, operation.direction);
+                case WriteAheadLog.OP_DELETE -> applyDelete(operation.x, operation.z, operation.infinite, operation.direction);
+                case WriteAheadLog.OP_DELETE_COMPLETELY -> applyDeleteCompletely(region);
+                case WriteAheadLog.OP_WRITE_AT -> applyWriteAt(operation.body, region, operation.direction);
+                case WriteAheadLog.OP_WRITE_BYTES -> applyWriteBytes(ByteBuffer.wrap(operation.body.getBytes(StandardCharsets.ISO_8859_1)), region, operation.infinite, operation.direction);
+                default -> logger.warning("Skipping unknown write-ahead log operation " + operation.op);
+            }
         }
 
-        // Begin writing hex to chunk
+        logger.info("Replayed " + operations.size() + " operations from the write-ahead log");
+    }
 
-        int x = indexX;
-        int z = indexZ;
-        int y = -64;
+    /**
+     * Runs action as a single logged transaction: if the server dies halfway through, none of its
+     * operations are replayed. Must be called from the main thread.
+     */
+    public void runInTransaction(Runnable action) {
+        beginTransaction();
+        try {
+            action.run();
+        } finally {
+            commitTransaction();
+        }
+    }
 
-        for (int i = 0; i < res.length(); i++) {
-            Block current = world.getBlockAt(x, y, z);
+    public void beginTransaction() {
+        if (transactionDepth == 0) {
+            currentTransaction = wal != null ? wal.nextTransactionId() : 0;
+            transactionLogged = false;
+        }
+        transactionDepth++;
+    }
 
-            Material targetMat = getCorrespondingBlock(res.charAt(i));
-            current.setType(targetMat);
+    public void commitTransaction() {
+        transactionDepth--;
 
-            x++;
+        if (transactionDepth == 0) {
+            List<WriteAheadLog.Acknowledgement> callbacks = transactionCallbacks;
+            transactionCallbacks = new ArrayList<>();
 
-            if (x >= (indexX + 16)) {
-                if (z <= indexZ - 15) {
-                    x = indexX;
-                    z = indexZ;
-                    y++;
-                } else {
-                    x = indexX;
-                    z--;
+            if (wal != null && transactionLogged) {
+                wal.commit(currentTransaction, callbacks);
+            } else {
+                for (WriteAheadLog.Acknowledgement callback : callbacks) {
+                    callback.onCommit().run();
                 }
             }
 
-            if (y >= 320) {
-                if (writeInfinitely) {
-                    xIndex += direction;
-                    indexX = xIndex * 16;
-                    x = indexX;
-                    z = indexZ;
-                    y = -64;
-                } else {
-                    logger.info("Ran out of build height, discontinuing write!");
-                    return false;
-                }
-            }
+            currentTransaction = 0;
+            transactionLogged = false;
+        }
+    }
+
+    /**
+     * Runs callback once the current transaction is durable in the write-ahead log, or straight away if there is
+     * nothing to wait for. Runs onFailure instead if the log couldn't be written.
+     */
+    public void afterCommit(Runnable callback, Runnable onFailure) {
+        if (wal != null && transactionDepth > 0 && Bukkit.isPrimaryThread()) {
+            transactionCallbacks.add(new WriteAheadLog.Acknowledgement(callback, onFailure));
+        } else {
+            callback.run();
+        }
+    }
+
+    private void logOperation(byte op, Region region, boolean infinite, int direction, String body) {
+        if (wal == null) {
+            return;
+        }
 
+        if (transactionDepth > 0) {
+            wal.append(op, currentTransaction, region.xIndex(), region.zIndex(), region.baseLayer(), region.layers(), infinite, direction, body);
+            transactionLogged = true;
+        } else {
+            long txId = wal.nextTransactionId();
+            wal.append(op, txId, region.xIndex(), region.zIndex(), region.baseLayer(), region.layers(), infinite, direction, body);
+            wal.commit(txId, new ArrayList<>());
         }
+    }
+
+    // ==================== WRITE-BEHIND BUFFER ====================
+
+    /**
+     * Makes replaceChunk buffer its writes in memory and starts the per-tick flusher, which writes
+     * buffered chunks to blocks for at most budgetMillis of each tick
+     */
+    public void enableWriteBehind(long budgetMillis) {
+        this.writeBehind = true;
+        this.flushBudgetNanos = budgetMillis * 1_000_000L;
+
+        Bukkit.getScheduler().runTaskTimer(plugin, () -> flushPendingWrites(flushBudgetNanos), 1L, 1L);
+    }
+
+    /**
+     * Replaces the whole content of a single chunk with body. With write-behind enabled the new content is
+     * logged and kept in memory, reads see it straight away, and the blocks are written later by the flusher.
+     * Repeated replaces of the same chunk before it is flushed only write blocks once.
+     * @return false if body doesn't fit in one chunk, in which case nothing is written
+     */
+    public boolean replaceChunk(String body, int xIndex, int zIndex) {
+        return replaceRegion(encodeText(body), Region.chunk(xIndex, zIndex));
+    }
+
+    private boolean replaceRegion(String body, Region region) {
+        if (!fitsInRegion(body, region)) {
+            logger.info("Content is too large for its " + region.layers() + " layers, discontinuing write!");
+            return false;
+        }
+
+        logOperation(WriteAheadLog.OP_DELETE_COMPLETELY, region, false, 1, "");
+        logOperation(WriteAheadLog.OP_WRITE, region, false, 1, body);
+
+        if (!writeBehind) {
+            pendingWrites.remove(region);
+            applyReplace(body, region);
+            return true;
+        }
+
+        pendingWrites.put(region, body);
 
         return true;
+    }
+
+    /**
+     * Writes buffered regions to the store, oldest first, until budgetNanos has been spent
+     */
+    public void flushPendingWrites(long budgetNanos) {
+        long start = System.nanoTime();
+
+        Iterator<Map.Entry<Region, String>> iterator = pendingWrites.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<Region, String> pending = iterator.next();
+            iterator.remove();
+
+            applyReplace(pending.getValue(), pending.getKey());
+
+            if (System.nanoTime() - start >= budgetNanos) {
+                break;
+            }
+        }
+    }
 
+    public void flushAllPendingWrites() {
+        if (!pendingWrites.isEmpty()) {
+            logger.info("Flushing " + pendingWrites.size() + " buffered chunk writes");
+            flushPendingWrites(Long.MAX_VALUE);
+        }
     }
 
-    public String readChunk(int xIndex, int zIndex, boolean readInfinitely, int direction) {
-        // Calculate starting scan coordinates based on given index
+    public int getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    /**
+     * Writes the buffered content of one region to blocks now, if there is any
+     */
+    private void flushPendingWrite(Region region) {
+        String pending = pendingWrites.remove(region);
 
-        int startX = xIndex * 16;
-        int startZ = -1 + (zIndex * 16);
+        if (pending != null) {
+            applyReplace(pending, region);
+        }
+    }
 
-        int x = startX;
-        int z = startZ;
-        int y = -64;
+    private String getPendingWrite(Region region) {
+        return pendingWrites.isEmpty() ? null : pendingWrites.get(region);
+    }
 
-        // Scan through chunk at index and build hex string
-        StringBuilder hexBuilder = new StringBuilder();
-        boolean reading = true;
+    /**
+     * Checks whether text, once encoded, fits in a single chunk with room left for the end marker
+     */
+    public static boolean fitsInChunk(String text) {
+        return fitsInRegion(encodeText(text), Region.chunk(0, 0));
+    }
 
-        while (reading) {
-            Block current = world.getBlockAt(x, y, z);
-            char presentChar = getCorrespondingChar(current.getType());
-            if (presentChar != 'n') {
-                hexBuilder.append(presentChar);
-            } else {
-                // Found invalid Material, chunk is out of data, stop scanning
-                reading = false;
+    /**
+     * Checks whether text, once encoded, fits in one slot of a chunk split into slotsPerChunk slots
+     */
+    public static boolean fitsInSlot(String text, int slotsPerChunk) {
+        return fitsInRegion(encodeText(text), Region.slot(0, 0, 0, slotsPerChunk));
+    }
+
+    /**
+     * Counts how many characters of text, starting at start, fit in a single chunk once encoded, with room left for
+     * the end marker and for reservedChars ASCII characters of header. Never splits a surrogate pair, so each piece
+     * encodes on its own.
+     */
+    public static int charsFittingInChunk(String text, int start, int reservedChars) {
+        int capacity = Region.chunk(0, 0).capacity() - 1 - reservedChars * 2;
+        int hexLength = 0;
+        int end = start;
+
+        while (end < text.length()) {
+            hexLength += utf8Length(text.charAt(end)) * 2;
+            if (hexLength > capacity) {
+                break;
             }
+            end++;
+        }
 
-            x++;
+        if (end < text.length() && end > start && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
 
-            if (x >= (startX + 16)) {
-                if (z <= startZ - 15) {
-                    x = startX;
-                    z = startZ;
-                    y++;
-                } else {
-                    x = startX;
-                    z--;
-                }
+        return end - start;
+    }
+
+    /**
+     * Counts how many stored characters of body, starting at start, fit in capacity blocks
+     */
+    private static int charsFitting(String body, int start, int capacity) {
+        int hexLength = 0;
+        int end = start;
+
+        while (end < body.length()) {
+            hexLength += hexLength(body.charAt(end));
+            if (hexLength > capacity) {
+                break;
             }
+            end++;
+        }
 
-            if (y >= 320) {
-                if (readInfinitely) {
-                    xIndex += direction;
-                    startX = xIndex * 16;
-                    x = startX;
-                    z = startZ;
-                    y = -64;
-                } else {
-                    logger.info("Ran out of build height, discontinuing read!");
-                    return "Failed";
-                }
+        return end - start;
+    }
+
+    private static boolean fitsInRegion(String body, Region region) {
+        long hexLength = 0;
+
+        for (int i = 0; i < body.length(); i++) {
+            hexLength += hexLength(body.charAt(i));
+        }
+
+        return hexLength < region.capacity();
+    }
+
+    // ==================== SLOTS ====================
+
+    /*
+     * A chunk can be split vertically into slotsPerChunk equal slots, each holding its own content
+     * with its own end marker. Slot 0 starts at the bottom of the chunk; one slot per chunk is the whole chunk.
+     */
+
+    public String readSlot(int xIndex, int zIndex, int slot, int slotsPerChunk) {
+        return decodeText(readRegion(Region.slot(xIndex, zIndex, slot, slotsPerChunk)));
+    }
+
+    public String readSlotPrefix(int xIndex, int zIndex, int slot, int slotsPerChunk, int charCount) {
+        return decodeText(readRegionPrefix(Region.slot(xIndex, zIndex, slot, slotsPerChunk), charCount));
+    }
+
+    /**
+     * Same as replaceChunk, for one slot of the chunk
+     */
+    public boolean replaceSlot(String body, int xIndex, int zIndex, int slot, int slotsPerChunk) {
+        return replaceRegion(encodeText(body), Region.slot(xIndex, zIndex, slot, slotsPerChunk));
+    }
+
+    public void writeInSlot(String text, int xIndex, int zIndex, int slot, int slotsPerChunk, int charOffset) {
+        writeInRegion(encodeText(text), Region.slot(xIndex, zIndex, slot, slotsPerChunk), charOffset);
+    }
+
+    public void deleteSlot(int xIndex, int zIndex, int slot, int slotsPerChunk) {
+        deleteRegion(Region.slot(xIndex, zIndex, slot, slotsPerChunk));
+    }
+
+    // ==================== CHUNK OPERATIONS ====================
+
+    /*
+     * Text is stored as UTF-8, one byte per stored character and two blocks per byte. The public text methods
+     * encode and decode it; everything below them, the write-ahead log and the write-behind buffer included,
+     * only ever sees the stored characters.
+     */
+
+    public boolean writeToChunk(String text, int xIndex, int zIndex, boolean writeInfinitely, int direction) {
+        String body = encodeText(text);
+        Region region = Region.chunk(xIndex, zIndex);
+
+        if (!writeInfinitely) {
+            logOperation(WriteAheadLog.OP_WRITE, region, false, direction, body);
+        } else {
+            // Logged a chunk at a time, split the way applyWrite splits it, so the metadata that links a file in is
+            // never replayed without its data and no record has to hold a whole file
+            int start = 0;
+            int x = xIndex;
+
+            do {
+                Region current = Region.chunk(x, zIndex);
+                int count = charsFitting(body, start, current.capacity());
+
+                // Marked infinite so replay writes a piece that fills its chunk completely, as this write does
+                logOperation(WriteAheadLog.OP_WRITE, current, true, direction, body.substring(start, start + count));
+
+                start += count;
+                x += direction;
+            } while (start < body.length());
+        }
+
+        // Anything buffered for this chunk has to land first, since this write goes on top of it
+        flushPendingWrite(region);
+
+        return applyWrite(body, region, writeInfinitely, direction);
+    }
+
+    /**
+     * Overwrites the characters of a chunk's content starting at charOffset with text, leaving the rest untouched.
+     * Every character before charOffset and in text must be ASCII (two blocks each), like a fixed-width row header.
+     * Only 2 * text.length() blocks are written, no matter how large the content is.
+     */
+    public void writeInChunk(String text, int xIndex, int zIndex, int charOffset) {
+        writeInRegion(encodeText(text), Region.chunk(xIndex, zIndex), charOffset);
+    }
+
+    private void writeInRegion(String text, Region region, int charOffset) {
+        logOperation(WriteAheadLog.OP_WRITE_AT, region, false, charOffset, text);
+
+        String pending = getPendingWrite(region);
+        if (pending != null) {
+            // Not on blocks yet, so patch the buffered content instead
+            String patched = pending.substring(0, charOffset) + text + pending.substring(Math.min(pending.length(), charOffset + text.length()));
+            pendingWrites.put(region, patched);
+            return;
+        }
+
+        applyWriteAt(text, region, charOffset);
+    }
+
+    /**
+     * Replaces a region's content in place, letting the store skip whatever is unchanged
+     */
+    private void applyReplace(String body, Region region) {
+        store.replace(body, region);
+    }
+
+    private void applyWriteAt(String text, Region region, int charOffset) {
+        store.writeAt(text, region, charOffset);
+    }
+
+    /**
+     * Reads at most the first charCount characters of a chunk, touching only the blocks that hold them
+     */
+    public String readChunkPrefix(int xIndex, int zIndex, int charCount) {
+        return decodeText(readRegionPrefix(Region.chunk(xIndex, zIndex), charCount));
+    }
+
+    private String readRegionPrefix(Region region, int charCount) {
+        String pending = getPendingWrite(region);
+        if (pending != null) {
+            return pending.substring(0, Math.min(charCount, pending.length()));
+        }
+
+        return store.readPrefix(region, charCount);
+    }
+
+    private boolean applyWrite(String body, Region region, boolean writeInfinitely, int direction) {
+        if (!writeInfinitely) {
+            if (!fitsInRegion(body, region)) {
+                logger.info("Ran out of build height, discontinuing write!");
+                return false;
             }
 
+            store.write(body, region);
+            return true;
         }
 
-        // Take constructed hex line and build ascii result
+        // Content larger than a chunk fills whole chunks one after another along X
+        int xIndex = region.xIndex();
+        int start = 0;
 
-        StringBuilder asciiBuilder = new StringBuilder();
+        do {
+            Region current = Region.chunk(xIndex, region.zIndex());
+            int count = charsFitting(body, start, current.capacity());
 
-        for (int i = 0; i < hexBuilder.length(); i += 2) {
+            store.write(body.substring(start, start + count), current);
 
-            String hexByte = new String(new char[]{hexBuilder.charAt(i), hexBuilder.charAt(i + 1)});
+            start += count;
+            xIndex += direction;
+        } while (start < body.length());
 
-            asciiBuilder.append(hexToAscii(hexByte));
+        return true;
+    }
 
+    public String readChunk(int xIndex, int zIndex, boolean readInfinitely, int direction) {
+        if (readInfinitely) {
+            return decodeText(readSpanning(xIndex, zIndex, direction));
         }
 
-        return asciiBuilder.toString();
+        String pending = getPendingWrite(Region.chunk(xIndex, zIndex));
+        if (pending != null) {
+            return decodeText(pending);
+        }
 
+        return decodeText(store.read(Region.chunk(xIndex, zIndex)));
     }
 
     public String readChunkSafely(int xIndex, int zIndex, boolean readInfinitely, int direction) {
-        int startX = xIndex * 16;
-        int startZ = -1 + (zIndex * 16);
+        if (readInfinitely) {
+            return decodeText(readSpanning(xIndex, zIndex, direction));
+        }
 
-        int x = startX;
-        int z = startZ;
-        int y = -64;
+        return decodeText(readRegion(Region.chunk(xIndex, zIndex)));
+    }
 
-        StringBuilder hexBuilder = new StringBuilder();
-        boolean reading = true;
-        int blocksRead = 0;
-        final int MAX_BLOCKS_PER_CHUNK = 16 * 16 * 384; // Reasonable limit
+    /**
+     * Reads content that carries on into the next chunk along X for as long as each chunk is full
+     */
+    private String readSpanning(int xIndex, int zIndex, int direction) {
+        StringBuilder result = new StringBuilder();
 
-        while (reading && blocksRead < MAX_BLOCKS_PER_CHUNK) {
-            Block current = world.getBlockAt(x, y, z);
-            char presentChar = getCorrespondingChar(current.getType());
+        for (int chunks = 0; chunks < MAX_SPANNING_CHUNKS; chunks++) {
+            Region region = Region.chunk(xIndex, zIndex);
 
-            if (presentChar != 'n') {
-                hexBuilder.append(presentChar);
-                blocksRead++;
-            } else {
-                // Found invalid Material, chunk is out of data, stop scanning
-                reading = false;
-                break;
+            // Only a full chunk carries on, so the next chunk loads in the background while this one is decoded
+            boolean full = store.isFull(region);
+            if (full) {
+                readAhead(xIndex + direction, zIndex, direction, 1);
             }
 
-            // Move to next position
-            x++;
-            if (x >= (startX + 16)) {
-                if (z <= startZ - 15) {
-                    x = startX;
-                    z = startZ;
-                    y++;
-                } else {
-                    x = startX;
-                    z--;
-                }
-            }
+            result.append(store.read(region));
 
-            if (y >= 320) {
-                if (readInfinitely) {
-                    xIndex += direction;
-                    startX = xIndex * 16;
-                    x = startX;
-                    z = startZ;
-                    y = -64;
-                    logger.info("Moving to next chunk: X=" + xIndex);
-                } else {
-                    logger.warning("Hit build height limit at Y=320. Blocks read: " + blocksRead);
-                    break;
-                }
+            if (!full) {
+                return result.toString();
             }
+
+            xIndex += direction;
+            logger.info("Moving to next chunk: X=" + xIndex);
         }
 
-        if (blocksRead >= MAX_BLOCKS_PER_CHUNK) {
-            logger.severe("Possible data corruption detected! Read " + blocksRead + " blocks without finding end marker.");
+        logger.severe("Possible data corruption detected! Read " + MAX_SPANNING_CHUNKS + " chunks without finding end marker.");
+
+        return result.toString();
+    }
+
+    /**
+     * Reads a single region up to its end marker, never past the top of the region
+     */
+    private String readRegion(Region region) {
+        String pending = getPendingWrite(region);
+        if (pending != null) {
+            return pending;
         }
 
-        // Convert hex to ASCII
-        StringBuilder asciiBuilder = new StringBuilder();
-        for (int i = 0; i < hexBuilder.length(); i += 2) {
-            if (i + 1 < hexBuilder.length()) {
-                String hexByte = new String(new char[]{hexBuilder.charAt(i), hexBuilder.charAt(i + 1)});
-                try {
-                    asciiBuilder.append(hexToAscii(hexByte));
-                } catch (Exception e) {
-                    logger.warning("Invalid hex sequence: " + hexByte);
-                    break;
-                }
-            }
+        String content = store.read(region);
+
+        if (store.isFull(region)) {
+            logger.warning("Hit the top of the region at layer " + (region.baseLayer() + region.layers()) + " without an end marker");
         }
 
-        return asciiBuilder.toString();
+        return content;
     }
 
     public void deleteChunkCompletely(int xIndex, int zIndex, boolean readInfinitely, int direction) {
-        int startX = xIndex * 16;
-        int startZ = -1 + (zIndex * 16);
-
-        // Clean every block in the chunk area
-        for (int x = startX; x < startX + 16; x++) {
-            for (int z = startZ; z > startZ - 16; z--) {
-                for (int y = -64; y < 320; y++) {
-                    Block current = world.getBlockAt(x, y, z);
-
-                    if (isWoolBlock(current.getType())) {
-                        if (y == -64) {
-                            current.setType(Material.GRASS_BLOCK);
-                        } else {
-                            current.setType(Material.AIR);
-                        }
-                    }
-                }
-            }
-        }
+        // The delete wipes whatever was buffered for any part of the chunk along with the blocks already there
+        pendingWrites.keySet().removeIf(region -> region.xIndex() == xIndex && region.zIndex() == zIndex);
+
+        Region region = Region.chunk(xIndex, zIndex);
+        logOperation(WriteAheadLog.OP_DELETE_COMPLETELY, region, false, direction, "");
+        applyDeleteCompletely(region);
 
         logger.info("Completely cleaned chunk at X:" + xIndex + ", Z:" + zIndex);
     }
-    
+
+    private void deleteRegion(Region region) {
+        logOperation(WriteAheadLog.OP_DELETE_COMPLETELY, region, false, 1, "");
+
+        pendingWrites.remove(region);
+
+        applyDeleteCompletely(region);
+    }
+
+    private void applyDeleteCompletely(Region region) {
+        store.delete(region);
+    }
+
     public void deleteChunk(int xIndex, int zIndex, boolean readInfinitely, int direction) {
+        Region region = Region.chunk(xIndex, zIndex);
 
-        // Calculate starting scan coordinates based on given index
+        logOperation(WriteAheadLog.OP_DELETE, region, readInfinitely, direction, "");
 
-        int startX = xIndex * 16;
-        int startZ = -1 + (zIndex * 16);
+        flushPendingWrite(region);
 
-        int x = startX;
-        int z = startZ;
-        int y = -64;
+        applyDelete(xIndex, zIndex, readInfinitely, direction);
+    }
 
-        boolean stillData = true;
+    private void applyDelete(int xIndex, int zIndex, boolean readInfinitely, int direction) {
+        for (int chunks = 0; chunks < MAX_SPANNING_CHUNKS; chunks++) {
+            Region region = Region.chunk(xIndex, zIndex);
+            boolean carriesOn = readInfinitely && store.isFull(region);
 
-        while (stillData) {
-            Block current = world.getBlockAt(x, y, z);
+            store.delete(region);
 
-            if (isWoolBlock(current.getType())) {
-                if (y == -64) current.setType(Material.GRASS_BLOCK);
-                else
-                    current.setType(Material.AIR);
-            } else {
-                stillData = false;
-                break;
+            if (!carriesOn) {
+                return;
             }
 
-            x++;
+            xIndex += direction;
+        }
+    }
 
-            if (x >= (startX + 16)) {
-                if (z <= startZ - 15) {
-                    x = startX;
-                    z = startZ;
-                    y++;
-                } else {
-                    x = startX;
-                    z--;
-                }
+    // ==================== BYTE OPERATIONS ====================
+
+    /*
+     * Binary content goes straight between byte arrays and the store, two blocks per byte, with no hex strings in
+     * between. It reads back through readChunk as one character per byte as well.
+     */
+
+    /**
+     * Reads a chunk's content as bytes, carrying on into the next chunk along X for as long as each chunk is full
+     * when readInfinitely is set
+     */
+    public byte[] readBytes(int xIndex, int zIndex, boolean readInfinitely, int direction) {
+        if (!readInfinitely) {
+            String pending = getPendingWrite(Region.chunk(xIndex, zIndex));
+            if (pending != null) {
+                return pending.getBytes(StandardCharsets.ISO_8859_1);
             }
 
-            if (y >= 320) {
-                if (readInfinitely) {
-                    xIndex += direction;
-                    startX = xIndex * 16;
-                    x = startX;
-                    z = startZ;
-                    y = -64;
-                } else {
-                    logger.info("Ran out of build height, discontinuing delete!");
-                }
+            return store.readBytes(Region.chunk(xIndex, zIndex));
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+        for (int chunks = 0; chunks < MAX_SPANNING_CHUNKS; chunks++) {
+            Region region = Region.chunk(xIndex, zIndex);
+
+            boolean full = store.isFull(region);
+            if (full) {
+                readAhead(xIndex + direction, zIndex, direction, 1);
+            }
+
+            result.writeBytes(store.readBytes(region));
+
+            if (!full) {
+                return result.toByteArray();
+            }
+
+            xIndex += direction;
+        }
+
+        logger.severe("Possible data corruption detected! Read " + MAX_SPANNING_CHUNKS + " chunks without finding end marker.");
+
+        return result.toByteArray();
+    }
+
+    /**
+     * Reads at most length bytes of one chunk's content, starting at byteOffset, into buffer, and starts loading the
+     * next chunks along direction. Byte n of multi-chunk content is byte n % BYTES_PER_CHUNK of chunk
+     * n / BYTES_PER_CHUNK, so a download can go through it a chunk at a time with the same buffer, or jump straight
+     * to the part it needs, and only the blocks holding the bytes read are decoded. chunksAfter is how many chunks
+     * the content is known to carry on for past this one, and read-ahead stops there.
+     * @return how many bytes were read, fewer than length if the content ends first
+     */
+    public int readBytes(int xIndex, int zIndex, int direction, int byteOffset, byte[] buffer, int length, int chunksAfter) {
+        readAhead(xIndex + direction, zIndex, direction, chunksAfter);
+
+        return store.readBytes(Region.chunk(xIndex, zIndex), byteOffset, buffer, length);
+    }
+
+    /**
+     * How many bytes multi-chunk content starting at the given chunk is, found by following full chunks along
+     * direction and only measuring the last one
+     */
+    public long spanningByteLength(int xIndex, int zIndex, int direction) {
+        long length = 0;
+
+        for (int chunks = 0; chunks < MAX_SPANNING_CHUNKS; chunks++) {
+            Region region = Region.chunk(xIndex, zIndex);
+
+            if (!store.isFull(region)) {
+                return length + store.byteLength(region);
+            }
+
+            length += BYTES_PER_CHUNK;
+            xIndex += direction;
+        }
+
+        return length;
+    }
+
+    public boolean writeBytes(byte[] body, int xIndex, int zIndex, boolean writeInfinitely, int direction) {
+        return writeBytes(ByteBuffer.wrap(body), xIndex, zIndex, writeInfinitely, direction);
+    }
+
+    /**
+     * Writes the remaining bytes of body like writeToChunk writes text. Multi-chunk writes fill capacity / 2 bytes
+     * of each chunk, so a spanning read knows to carry on.
+     * @return false if body doesn't fit in one chunk and writeInfinitely isn't set, in which case nothing is written
+     */
+    public boolean writeBytes(ByteBuffer body, int xIndex, int zIndex, boolean writeInfinitely, int direction) {
+        Region region = Region.chunk(xIndex, zIndex);
+
+        if (!writeInfinitely) {
+            if (body.remaining() * 2L >= region.capacity()) {
+                logger.info("Ran out of build height, discontinuing write!");
+                return false;
             }
 
+            logBytes(region, direction, body);
+        } else {
+            // A chunk at a time, split the way applyWriteBytes splits it
+            ByteBuffer rest = body.duplicate();
+            int x = xIndex;
+
+            do {
+                ByteBuffer part = rest.slice();
+                part.limit(Math.min(part.remaining(), BYTES_PER_CHUNK));
+
+                logBytes(Region.chunk(x, zIndex), direction, part);
+
+                rest.position(rest.position() + part.limit());
+                x += direction;
+            } while (rest.hasRemaining());
+        }
+
+        flushPendingWrite(region);
+
+        return applyWriteBytes(body, region, writeInfinitely, direction);
+    }
+
+    /**
+     * Writes content that was read in pieces of BYTES_PER_CHUNK bytes, the last one possibly shorter, one piece
+     * per chunk along X. Reads the same back as a multi-chunk writeBytes of the whole content, without it ever
+     * having to be in one buffer.
+     * @return false if a piece is larger than a chunk holds, in which case nothing is written
+     */
+    public boolean writeBytes(List<ByteBuffer> pieces, int xIndex, int zIndex, int direction) {
+        for (ByteBuffer piece : pieces) {
+            if (piece.remaining() > BYTES_PER_CHUNK) {
+                logger.info("Piece of " + piece.remaining() + " bytes is too large for a chunk, discontinuing write!");
+                return false;
+            }
         }
 
+        flushPendingWrite(Region.chunk(xIndex, zIndex));
+
+        for (ByteBuffer piece : pieces) {
+            Region region = Region.chunk(xIndex, zIndex);
+
+            logBytes(region, direction, piece);
+            store.writeBytes(piece, region);
+            xIndex += direction;
+        }
+
+        return true;
+    }
+
+    /**
+     * Logs a write of the remaining bytes of body to one chunk, leaving its position alone
+     */
+    private void logBytes(Region region, int direction, ByteBuffer body) {
+        if (wal == null) {
+            return;
+        }
+
+        byte[] logged = new byte[body.remaining()];
+        body.duplicate().get(logged);
+        logOperation(WriteAheadLog.OP_WRITE_BYTES, region, false, direction, new String(logged, StandardCharsets.ISO_8859_1));
+    }
+
+    private boolean applyWriteBytes(ByteBuffer body, Region region, boolean writeInfinitely, int direction) {
+        if (!writeInfinitely) {
+            store.writeBytes(body, region);
+            return true;
+        }
+
+        int xIndex = region.xIndex();
+
+        do {
+            Region current = Region.chunk(xIndex, region.zIndex());
+            ByteBuffer part = body.slice();
+            part.limit(Math.min(part.remaining(), BYTES_PER_CHUNK));
+
+            store.writeBytes(part, current);
+
+            body.position(body.position() + part.limit());
+            xIndex += direction;
+        } while (body.hasRemaining());
+
+        return true;
     }
 
     public int getTableIndex(String tableTitle, int indexOffset) {
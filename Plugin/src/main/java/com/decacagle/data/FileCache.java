@@ -0,0 +1,132 @@
+package com.decacagle.data;
+
+import com.decacagle.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the stored bodies of recently served files in memory, so popular files like profile pictures and site
+ * assets are served without reading the world at all. Bodies are held in direct ByteBuffers, outside the Java heap,
+ * so a full cache doesn't add to the server's garbage collection work. The cache holds at most maxBytes of bodies
+ * and drops the least recently served file to make room.
+ * <p>
+ * Files are cached with their version from ContentVersions, bumped whenever the file is uploaded or deleted.
+ * A download notes the version before it reads the file and only caches what it read if the version is still the
+ * same, so a body read just before an upload or delete never ends up cached after it, and a cached body whose file
+ * has changed since is never served.
+ * <p>
+ * Safe to use from any thread.
+ */
+public class FileCache {
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final ContentVersions versions;
+    private final Metrics metrics;
+
+    private final LinkedHashMap<Integer, CachedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes = 0;
+
+    public FileCache(long maxBytes, long maxFileBytes, ContentVersions versions, Metrics metrics) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+        this.versions = versions;
+        this.metrics = metrics;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Whether a file of this many bytes would be cached
+     */
+    public boolean fits(long size) {
+        return size >= 0 && size <= maxFileBytes && isEnabled();
+    }
+
+    public long version(int fileIndex) {
+        return versions.file(fileIndex).count();
+    }
+
+    /**
+     * The cached file, or null if it isn't cached. Its body is a read-only view of its own, positioned at the start.
+     */
+    public synchronized CachedFile get(int fileIndex) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        CachedFile cached = files.get(fileIndex);
+
+        if (cached != null && cached.version() != version(fileIndex)) {
+            // Changed by something that doesn't invalidate the cache itself, such as a raw write
+            remove(fileIndex);
+            cached = null;
+        }
+
+        if (cached == null) {
+            metrics.increment("file_cache_misses");
+            return null;
+        }
+
+        metrics.increment("file_cache_hits");
+        return new CachedFile(cached.version(), cached.mime(), cached.compressed(), cached.body().duplicate());
+    }
+
+    /**
+     * Caches a file's body as it is stored, read when the file was at the given version, unless it has changed since.
+     * compressed is whether the body is gzipped.
+     */
+    public synchronized void put(int fileIndex, long version, String mime, boolean compressed, ByteBuffer body) {
+        if (!fits(body.remaining()) || version != version(fileIndex)) {
+            return;
+        }
+
+        ByteBuffer stored = body.slice().asReadOnlyBuffer();
+        CachedFile previous = files.put(fileIndex, new CachedFile(version, mime, compressed, stored));
+
+        if (previous != null) {
+            usedBytes -= previous.body().capacity();
+        }
+        usedBytes += stored.capacity();
+
+        Iterator<CachedFile> eldest = files.values().iterator();
+        while (usedBytes > maxBytes) {
+            usedBytes -= eldest.next().body().capacity();
+            eldest.remove();
+            metrics.increment("file_cache_evictions");
+        }
+
+        updateGauges();
+    }
+
+    /**
+     * Drops the file from the cache and bumps its version, so a download that started before can't cache it again.
+     * Called whenever a file index is written to or deleted.
+     */
+    public synchronized void invalidate(int fileIndex) {
+        versions.fileChanged(fileIndex);
+        remove(fileIndex);
+    }
+
+    private void remove(int fileIndex) {
+        CachedFile removed = files.remove(fileIndex);
+
+        if (removed != null) {
+            usedBytes -= removed.body().capacity();
+            updateGauges();
+        }
+    }
+
+    private void updateGauges() {
+        metrics.set("file_cache_bytes", usedBytes);
+        metrics.set("file_cache_files", files.size());
+    }
+
+    public record CachedFile(long version, String mime, boolean compressed, ByteBuffer body) {
+    }
+
+}
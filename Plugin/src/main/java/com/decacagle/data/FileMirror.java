@@ -0,0 +1,227 @@
+package com.decacagle.data;
+
+import com.decacagle.DecaDB;
+import com.decacagle.Metrics;
+import org.bukkit.Bukkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a copy of every file's decoded bytes on disk, in the plugin data folder under files/, named by the SHA-256
+ * of its content. FileReader sends a mirrored file straight from disk off the main thread, so a download costs no
+ * main-thread time beyond reading its metadata.
+ * <p>
+ * The world stays the system of record. A mirror file that is missing or has the wrong size is ignored, and written
+ * again from what is read out of the world the next time the file is downloaded whole. Files are written to a
+ * temporary name and moved into place, so a mirror file is either complete or not there at all.
+ */
+public class FileMirror {
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private Logger logger;
+    private DecaDB plugin;
+    private Metrics metrics;
+
+    private final File directory;
+    private final boolean enabled;
+
+    public FileMirror(Logger logger, DecaDB plugin, boolean enabled, Metrics metrics) {
+        this.logger = logger;
+        this.plugin = plugin;
+        this.enabled = enabled;
+        this.metrics = metrics;
+
+        this.directory = new File(plugin.getDataFolder(), "files");
+
+        if (enabled) {
+            directory.mkdirs();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The lowercase hex SHA-256 of the remaining bytes of every piece, leaving their positions alone
+     */
+    public static String hashOf(List<ByteBuffer> pieces) {
+        MessageDigest digest = sha256();
+
+        for (ByteBuffer piece : pieces) {
+            digest.update(piece.duplicate());
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Whether the file with this hash is mirrored, judged by its size. Cheap enough for the main thread.
+     */
+    public boolean contains(String hash, long size) {
+        boolean mirrored = enabled && size >= 0 && fileFor(hash).length() == size;
+
+        metrics.increment(mirrored ? "file_mirror_hits" : "file_mirror_misses");
+        return mirrored;
+    }
+
+    /**
+     * Opens the mirrored file for reading. Fails if it has gone missing since contains said it was there.
+     */
+    public FileChannel open(String hash) throws IOException {
+        return FileChannel.open(fileFor(hash).toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Writes the pieces to the mirror in the background, unless a file with the same content is already there.
+     * The pieces must not be changed afterwards.
+     */
+    public void store(String hash, long size, List<ByteBuffer> pieces) {
+        if (!enabled || fileFor(hash).length() == size) {
+            return;
+        }
+
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            try (Rebuild rebuild = rebuild(hash, size)) {
+                for (ByteBuffer piece : pieces) {
+                    rebuild.write(piece.duplicate());
+                }
+                rebuild.finish();
+            } catch (IOException e) {
+                logger.warning("Failed to mirror file " + hash + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Starts writing the mirror file for a file as its bytes are read out of the world. Write all of them, then
+     * call finish to move the file into place if its content matches the hash. Closing without finishing, or
+     * after finish found a mismatch, throws the partial file away.
+     */
+    public Rebuild rebuild(String hash, long size) throws IOException {
+        File temporary = new File(directory, hash + "-" + UUID.randomUUID() + TEMPORARY_SUFFIX);
+        return new Rebuild(hash, size, temporary);
+    }
+
+    /**
+     * Deletes every mirror file that isn't one of the given hashes, such as those of deleted files and temporary
+     * files left behind by a crash. Runs in the background.
+     */
+    public void retainOnly(Set<String> hashes) {
+        if (!enabled) {
+            return;
+        }
+
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            File[] files = directory.listFiles();
+            int deleted = 0;
+
+            if (files == null) {
+                return;
+            }
+
+            for (File file : files) {
+                if (!hashes.contains(file.getName()) && file.delete()) {
+                    deleted++;
+                }
+            }
+
+            if (deleted > 0) {
+                logger.info("Deleted " + deleted + " unused file mirror(s)");
+            }
+        });
+    }
+
+    private File fileFor(String hash) {
+        return new File(directory, hash);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java runtime has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public class Rebuild extends OutputStream {
+
+        private final String hash;
+        private final long size;
+        private final File temporary;
+        private final FileChannel channel;
+        private final MessageDigest digest = sha256();
+
+        private long written = 0;
+        private boolean finished = false;
+
+        private Rebuild(String hash, long size, File temporary) throws IOException {
+            this.hash = hash;
+            this.size = size;
+            this.temporary = temporary;
+            this.channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            write(ByteBuffer.wrap(b, off, len));
+        }
+
+        public void write(ByteBuffer buffer) throws IOException {
+            digest.update(buffer.duplicate());
+            written += buffer.remaining();
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        /**
+         * Moves the file into place if it is the size and content the file's metadata says
+         * @return whether it was
+         */
+        public boolean finish() throws IOException {
+            channel.close();
+
+            if (written != size || !HexFormat.of().formatHex(digest.digest()).equals(hash)) {
+                logger.warning("Not mirroring file " + hash + ": its content in the world doesn't match its hash");
+                return false;
+            }
+
+            Files.move(temporary.toPath(), fileFor(hash).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            finished = true;
+            metrics.increment("file_mirror_writes");
+
+            return true;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+
+            if (!finished) {
+                Files.deleteIfExists(temporary.toPath());
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.decacagle.data;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the paths files are served from to their file index, for FileReader to route every download through one
+ * handler instead of an HttpServer context per file. Looking a path up is a single hash lookup however many files
+ * there are, and each file costs one map entry.
+ * <p>
+ * Paths are keyed by file title, so /{title}, /files/{title} and both ways of encoding a space in a URL all find
+ * the same file. Uploads and deletes update the map as they happen, and a lookup sees either the old route or the
+ * new one, never anything in between.
+ * <p>
+ * Safe to use from any thread.
+ */
+public class FileRoutes {
+
+    private static final String FILES_PREFIX = "/files/";
+
+    private final Map<String, Integer> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Routes the file's path to its index, taking it over from any file that had it before
+     * @return the path the file is served from
+     */
+    public String add(String fileTitle, int fileIndex) {
+        routes.put(fileTitle, fileIndex);
+        return DataUtilities.contextNameBuilder(fileTitle);
+    }
+
+    /**
+     * Whether a file is already served from this title's path
+     */
+    public boolean contains(String fileTitle) {
+        return routes.containsKey(fileTitle);
+    }
+
+    /**
+     * Removes the file's route, unless another file has taken its path over since
+     */
+    public void remove(String fileTitle, int fileIndex) {
+        routes.remove(fileTitle, fileIndex);
+    }
+
+    /**
+     * The index of the file served at a request's raw, still encoded path, or 0 if there isn't one
+     */
+    public int lookup(String rawPath) {
+        String encodedTitle = rawPath.startsWith(FILES_PREFIX) ? rawPath.substring(FILES_PREFIX.length()) : rawPath.substring(1);
+
+        if (encodedTitle.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            return routes.getOrDefault(URLDecoder.decode(encodedTitle, StandardCharsets.UTF_8), 0);
+        } catch (IllegalArgumentException e) {
+            // Broken percent encoding can't name a file
+            return 0;
+        }
+    }
+
+    /**
+     * The paths of every routed file
+     */
+    public Set<String> paths() {
+        Set<String> paths = new HashSet<>();
+
+        for (String fileTitle : routes.keySet()) {
+            paths.add(DataUtilities.contextNameBuilder(fileTitle));
+        }
+
+        return paths;
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+}
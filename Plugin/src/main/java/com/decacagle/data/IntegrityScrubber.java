@@ -0,0 +1,113 @@
+package com.decacagle.data;
+
+import com.decacagle.DecaDB;
+import com.decacagle.Metrics;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Checks wool data against the checksums kept by ChecksumPageStore in the background, a few chunks at a time.
+ * Each tick takes snapshots of the next chunks on the main thread, which is only a copy, and decodes and checks
+ * them asynchronously. Only loaded chunks are checked: players can't break blocks anywhere else, so a chunk
+ * can only have been damaged while it was loaded.
+ */
+public class IntegrityScrubber {
+
+    private Logger logger;
+    private World world;
+    private DecaDB plugin;
+    private Metrics metrics;
+
+    private final Deque<long[]> queue = new ArrayDeque<>();
+    private double chunksPerTick;
+    private double allowance = 0;
+    private BukkitTask task;
+
+    public IntegrityScrubber(Logger logger, World world, DecaDB plugin, Metrics metrics) {
+        this.logger = logger;
+        this.world = world;
+        this.plugin = plugin;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts checking at most chunksPerSecond chunks a second
+     */
+    public void start(int chunksPerSecond) {
+        this.chunksPerTick = chunksPerSecond / 20.0;
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 20L, 1L);
+    }
+
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    private void tick() {
+        // With the pdc backend, any wool blocks left in the world are a mirror or stale, not what the checksums describe
+        if (!plugin.getConfig().getString("storage.backend", "wool").equalsIgnoreCase("wool")) {
+            return;
+        }
+
+        allowance = Math.min(allowance + chunksPerTick, Math.max(1, chunksPerTick));
+
+        while (allowance >= 1) {
+            if (queue.isEmpty()) {
+                // Start a new pass over whatever is loaded now
+                for (Chunk chunk : world.getLoadedChunks()) {
+                    queue.add(new long[]{chunk.getX(), chunk.getZ()});
+                }
+
+                metrics.increment("integrity_scrub_passes");
+
+                if (queue.isEmpty()) {
+                    return;
+                }
+            }
+
+            long[] next = queue.poll();
+            allowance--;
+
+            if (!world.isChunkLoaded((int) next[0], (int) next[1])) {
+                continue;
+            }
+
+            Chunk chunk = world.getChunkAt((int) next[0], (int) next[1]);
+            List<ChecksumPageStore.ChecksummedRegion> regions = ChecksumPageStore.checksumsIn(chunk, plugin);
+
+            if (regions.isEmpty()) {
+                continue;
+            }
+
+            ChunkSnapshot snapshot = chunk.getChunkSnapshot();
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> verify(snapshot, regions));
+        }
+    }
+
+    private void verify(ChunkSnapshot snapshot, List<ChecksumPageStore.ChecksummedRegion> regions) {
+        metrics.increment("integrity_chunks_scrubbed");
+
+        for (ChecksumPageStore.ChecksummedRegion checked : regions) {
+            Region region = checked.region();
+            String hex = WoolPageStore.readHex(snapshot, region);
+
+            metrics.increment("integrity_regions_scrubbed");
+
+            if (ChecksumPageStore.checksumOf(hex) != checked.checksum()) {
+                metrics.increment("integrity_scrub_mismatches");
+                logger.severe("CORRUPTION: Scrubber found a checksum mismatch in region X:" + region.xIndex() + ", Z:" + region.zIndex()
+                        + ", layers " + region.baseLayer() + "-" + (region.baseLayer() + region.layers() - 1));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.decacagle.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps every region's content in a map, with no server or world behind it. Nothing survives a restart, so this is
+ * for running TableManager and the rest of the query engine off-server, in benchmarks and load tests.
+ */
+public class MemoryPageStore implements PageStore {
+
+    private final Map<Region, String> regions = new HashMap<>();
+
+    public String read(Region region) {
+        return regions.getOrDefault(region, "");
+    }
+
+    public String readPrefix(Region region, int charCount) {
+        String content = read(region);
+        return content.substring(0, Math.min(charCount, content.length()));
+    }
+
+    public void write(String body, Region region) {
+        regions.put(region, body);
+    }
+
+    public void writeAt(String text, Region region, int charOffset) {
+        String content = read(region);
+
+        StringBuilder patched = new StringBuilder(content);
+        while (patched.length() < charOffset) {
+            patched.append(' ');
+        }
+        patched.replace(charOffset, Math.min(patched.length(), charOffset + text.length()), text);
+
+        regions.put(region, patched.toString());
+    }
+
+    public void delete(Region region) {
+        regions.keySet().removeIf(stored -> stored.overlaps(region));
+    }
+
+    public boolean isFull(Region region) {
+        // Whatever they were written as, stored characters read back as two hex digits each
+        return read(region).length() * 2L >= region.capacity();
+    }
+
+    public int getRegionCount() {
+        return regions.size();
+    }
+
+}
@@ -0,0 +1,276 @@
+package com.decacagle.data;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Moves the largest fields of rows that don't fit in their slot into overflow pages, leaving a reference
+ * like {"$overflow":3} in the row. Overflow pages are whole chunks in the table's own Z row at negative X,
+ * past the table sign: the chunk at OVERFLOW_COUNTER_X counts the pages ever allocated for the table and page p lives at
+ * OVERFLOW_COUNTER_X - p. Each page holds "{nextPage};{data}" with the same fixed-width pointer as row headers,
+ * so a value larger than a chunk is a chain of pages.
+ */
+public class OverflowManager {
+
+    public static final String OVERFLOW_KEY = "$overflow";
+
+    private static final int OVERFLOW_COUNTER_X = -2;
+    private static final int PAGE_HEADER_LENGTH = DataUtilities.ROW_POINTER_WIDTH + 1;
+
+    private Logger logger;
+    private DataWorker worker;
+    private TableManager tableManager;
+
+    private final int indexOffset = 1;
+
+    public OverflowManager(Logger logger, DataWorker worker, TableManager tableManager) {
+        this.logger = logger;
+        this.worker = worker;
+        this.tableManager = tableManager;
+    }
+
+    /**
+     * Quick check for overflow references, used to skip parsing rows that don't have any
+     */
+    public static boolean hasOverflow(String content) {
+        return content.contains("\"" + OVERFLOW_KEY + "\"");
+    }
+
+    // ==================== WRITE ====================
+
+    /**
+     * Moves the largest fields of content into overflow pages until the row built from it fits in one slot.
+     * The id field always stays in the row.
+     * @return the content to store in the row, unchanged if it already fits, or null if it can't be made to fit
+     */
+    public String spill(int tableIndex, String content, int slotsPerChunk) {
+        if (DataWorker.fitsInSlot(DataUtilities.rowBuilder(0, 0, content), slotsPerChunk)) {
+            return content;
+        }
+
+        JsonObject row;
+        try {
+            row = JsonParser.parseString(content).getAsJsonObject();
+        } catch (Exception e) {
+            return null;
+        }
+
+        List<Integer> writtenPages = new ArrayList<>();
+        String inline = content;
+
+        while (!DataWorker.fitsInSlot(DataUtilities.rowBuilder(0, 0, inline), slotsPerChunk)) {
+            String largestKey = null;
+            int largestLength = 0;
+
+            for (Map.Entry<String, JsonElement> field : row.entrySet()) {
+                if (field.getKey().equals("id") || isReference(field.getValue())) {
+                    continue;
+                }
+
+                int length = field.getValue().toString().length();
+                if (length > largestLength) {
+                    largestKey = field.getKey();
+                    largestLength = length;
+                }
+            }
+
+            // Nothing left that a reference would make smaller
+            if (largestKey == null || largestLength <= referenceFor(0).toString().length()) {
+                freePages(tableIndex, writtenPages);
+                return null;
+            }
+
+            int firstPage = writeValue(tableIndex, row.get(largestKey).toString(), writtenPages);
+            row.add(largestKey, referenceFor(firstPage));
+
+            inline = row.toString();
+        }
+
+        logger.info("Moved " + writtenPages.size() + " overflow pages out of a row in table " + tableIndex);
+
+        return inline;
+    }
+
+    private int writeValue(int tableIndex, String value, List<Integer> writtenPages) {
+        // Split the value into chunk-sized pieces first, so every page can be written knowing its next page
+        List<String> pieces = new ArrayList<>();
+        int start = 0;
+
+        while (start < value.length()) {
+            int count = DataWorker.charsFittingInChunk(value, start, PAGE_HEADER_LENGTH);
+            pieces.add(value.substring(start, start + count));
+            start += count;
+        }
+
+        List<Integer> pages = new ArrayList<>();
+        for (int i = 0; i < pieces.size(); i++) {
+            pages.add(allocatePage(tableIndex));
+        }
+
+        for (int i = 0; i < pieces.size(); i++) {
+            int next = i + 1 < pages.size() ? pages.get(i + 1) : 0;
+            String page = DataUtilities.rowPointerBuilder(next) + ";" + pieces.get(i);
+
+            worker.replaceChunk(page, OVERFLOW_COUNTER_X - pages.get(i), tableIndex + indexOffset);
+        }
+
+        writtenPages.addAll(pages);
+
+        return pages.get(0);
+    }
+
+    private int allocatePage(int tableIndex) {
+        int recycled = tableManager.getFreeChunk("overflow", tableIndex);
+        if (recycled > 0) {
+            return recycled;
+        }
+
+        String counter = worker.readChunkSafely(OVERFLOW_COUNTER_X, tableIndex + indexOffset, false, 1);
+        int page = counter.isEmpty() ? 1 : Integer.parseInt(counter) + 1;
+
+        worker.replaceChunk("" + page, OVERFLOW_COUNTER_X, tableIndex + indexOffset);
+
+        return page;
+    }
+
+    // ==================== READ ====================
+
+    /**
+     * Replaces every overflow reference in content with the value it points to
+     */
+    public String resolve(int tableIndex, String content) {
+        return resolve(tableIndex, content, null);
+    }
+
+    /**
+     * Replaces the overflow references of the given keys in content with the values they point to,
+     * or of every key if keys is null. Other references are left as they are, and their pages aren't read.
+     */
+    public String resolve(int tableIndex, String content, Set<String> keys) {
+        if (!hasOverflow(content)) {
+            return content;
+        }
+
+        try {
+            JsonObject row = JsonParser.parseString(content).getAsJsonObject();
+            boolean resolvedAny = false;
+
+            for (Map.Entry<String, JsonElement> field : row.entrySet()) {
+                if ((keys == null || keys.contains(field.getKey())) && isReference(field.getValue())) {
+                    int firstPage = field.getValue().getAsJsonObject().get(OVERFLOW_KEY).getAsInt();
+                    field.setValue(JsonParser.parseString(readValue(tableIndex, firstPage)));
+                    resolvedAny = true;
+                }
+            }
+
+            return resolvedAny ? row.toString() : content;
+        } catch (Exception e) {
+            logger.warning("Failed to resolve overflow for a row in table " + tableIndex + ": " + e.getMessage());
+            return content;
+        }
+    }
+
+    private String readValue(int tableIndex, int firstPage) {
+        StringBuilder value = new StringBuilder();
+        int page = firstPage;
+
+        while (page != 0) {
+            String pageData = worker.readChunkSafely(OVERFLOW_COUNTER_X - page, tableIndex + indexOffset, false, 1);
+
+            if (pageData.length() < PAGE_HEADER_LENGTH) {
+                logger.warning("Overflow page " + page + " of table " + tableIndex + " is missing or corrupt");
+                break;
+            }
+
+            value.append(pageData, PAGE_HEADER_LENGTH, pageData.length());
+            page = Integer.parseInt(pageData.substring(0, DataUtilities.ROW_POINTER_WIDTH));
+        }
+
+        return value.toString();
+    }
+
+    // ==================== DELETE ====================
+
+    /**
+     * Frees every overflow page referenced by content, reading only the page headers
+     */
+    public void free(int tableIndex, String content) {
+        if (!hasOverflow(content)) {
+            return;
+        }
+
+        try {
+            JsonObject row = JsonParser.parseString(content).getAsJsonObject();
+
+            for (Map.Entry<String, JsonElement> field : row.entrySet()) {
+                if (isReference(field.getValue())) {
+                    freeChain(tableIndex, field.getValue().getAsJsonObject().get(OVERFLOW_KEY).getAsInt());
+                }
+            }
+        } catch (Exception e) {
+            logger.warning("Failed to free overflow for a row in table " + tableIndex + ": " + e.getMessage());
+        }
+    }
+
+    private void freeChain(int tableIndex, int firstPage) {
+        int page = firstPage;
+
+        while (page != 0) {
+            String header = worker.readChunkPrefix(OVERFLOW_COUNTER_X - page, tableIndex + indexOffset, PAGE_HEADER_LENGTH);
+            int next = header.length() == PAGE_HEADER_LENGTH ? Integer.parseInt(header.substring(0, DataUtilities.ROW_POINTER_WIDTH)) : 0;
+
+            freePage(tableIndex, page);
+            page = next;
+        }
+    }
+
+    private void freePages(int tableIndex, List<Integer> pages) {
+        for (int page : pages) {
+            freePage(tableIndex, page);
+        }
+    }
+
+    private void freePage(int tableIndex, int page) {
+        worker.deleteChunkCompletely(OVERFLOW_COUNTER_X - page, tableIndex + indexOffset, false, 1);
+        tableManager.addToFreeChunks(page, "overflow", tableIndex);
+    }
+
+    /**
+     * Forgets how many overflow pages the table at tableIndex has allocated, once the table is dropped and all of
+     * them have been freed
+     */
+    public void resetCounter(int tableIndex) {
+        worker.deleteChunkCompletely(OVERFLOW_COUNTER_X, tableIndex + indexOffset, false, 1);
+    }
+
+    // ==================== HELPERS ====================
+
+    /**
+     * The chunk counting the overflow pages ever allocated for the table at tableIndex
+     */
+    public Region counterRegion(int tableIndex) {
+        return Region.chunk(OVERFLOW_COUNTER_X, tableIndex + indexOffset);
+    }
+
+    public Region pageRegion(int tableIndex, int page) {
+        return Region.chunk(OVERFLOW_COUNTER_X - page, tableIndex + indexOffset);
+    }
+
+    private static boolean isReference(JsonElement value) {
+        return value.isJsonObject() && value.getAsJsonObject().size() == 1 && value.getAsJsonObject().has(OVERFLOW_KEY);
+    }
+
+    private static JsonObject referenceFor(int page) {
+        JsonObject reference = new JsonObject();
+        reference.addProperty(OVERFLOW_KEY, page);
+        return reference;
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.decacagle.data;
+
+import com.decacagle.DecaDB;
+import org.bukkit.World;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Where DataWorker keeps the content of regions. Content is text, and a region holds as many characters as
+ * their hex encoding has digits to fit in its capacity, whatever the backend, so data can move between backends.
+ * Implementations are only called from the main thread.
+ */
+public interface PageStore {
+
+    /**
+     * Reads the region's content, or an empty string if it has none
+     */
+    String read(Region region);
+
+    /**
+     * Reads at most the first charCount characters of the region's content
+     */
+    String readPrefix(Region region, int charCount);
+
+    /**
+     * Writes body to an empty region. Its hex encoding must fit in the region's capacity.
+     */
+    void write(String body, Region region);
+
+    /**
+     * Reads the region's content as bytes, one per character. Backends that store bytes override this to skip the
+     * string.
+     */
+    default byte[] readBytes(Region region) {
+        return read(region).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads the region's content as bytes into buffer, which must hold at least half the region's capacity,
+     * so a long scan can decode every region into the same buffer
+     * @return how many bytes were read
+     */
+    default int readBytes(Region region, byte[] buffer) {
+        byte[] content = readBytes(region);
+        System.arraycopy(content, 0, buffer, 0, content.length);
+        return content.length;
+    }
+
+    /**
+     * Reads at most length bytes of the region's content, starting at byteOffset, into buffer
+     * @return how many bytes were read, fewer than length if the content ends first
+     */
+    default int readBytes(Region region, int byteOffset, byte[] buffer, int length) {
+        byte[] content = readBytes(region);
+        int count = Math.max(0, Math.min(length, content.length - byteOffset));
+        System.arraycopy(content, byteOffset, buffer, 0, count);
+        return count;
+    }
+
+    /**
+     * How many bytes the region's content is, one per character
+     */
+    default int byteLength(Region region) {
+        return readBytes(region).length;
+    }
+
+    /**
+     * Writes the remaining bytes of body to an empty region, two hex digits each, so they read back as one character
+     * per byte. Twice their count must fit in the region's capacity.
+     */
+    default void writeBytes(ByteBuffer body, Region region) {
+        byte[] content = new byte[body.remaining()];
+        body.get(content);
+        write(new String(content, StandardCharsets.ISO_8859_1), region);
+    }
+
+    /**
+     * Replaces the region's content with body, whose hex encoding must fit in the region's capacity.
+     * Backends that can tell what is already stored override this to only change what differs.
+     */
+    default void replace(String body, Region region) {
+        delete(region);
+        write(body, region);
+    }
+
+    /**
+     * Overwrites the characters of the region's content starting at charOffset with text, leaving the rest untouched
+     */
+    void writeAt(String text, Region region, int charOffset);
+
+    /**
+     * Removes the region's content, along with anything stored in regions overlapping it
+     */
+    void delete(Region region);
+
+    /**
+     * Whether the region is filled to capacity, meaning content spanning several chunks carries on in the next one
+     */
+    boolean isFull(Region region);
+
+    /**
+     * Hints that the region will be needed soon, so a backend can start loading it in the background
+     */
+    default void prefetch(Region region) {
+    }
+
+    /**
+     * Lets go of whatever the backend holds on to, like chunk tickets. Called when DataWorker moves to another
+     * backend and on shutdown.
+     */
+    default void close() {
+    }
+
+    /**
+     * Whether forBackend knows the named backend. Cheap, unlike creating one.
+     */
+    static boolean isBackend(String backend) {
+        return backend.equalsIgnoreCase("wool") || backend.equalsIgnoreCase("pdc");
+    }
+
+    /**
+     * Creates the named backend on its own, without the checksum and working set wrappers, for a quick look at data
+     * that doesn't need either
+     * @return the backend, or null if the name is unknown
+     */
+    static PageStore baseBackend(String backend, World world, DecaDB plugin) {
+        return switch (backend.toLowerCase()) {
+            case "wool" -> new WoolPageStore(world);
+            case "pdc" -> new PdcPageStore(world, plugin, plugin.getConfig().getBoolean("storage.visualize", false) ? new WoolPageStore(world) : null);
+            default -> null;
+        };
+    }
+
+    /**
+     * Creates the backend named in the config: "wool" or "pdc". The pdc backend mirrors its data as wool blocks
+     * when storage.visualize is on, and either is wrapped in a ChecksumPageStore when integrity.checksums is on
+     * and in a ChunkWorkingSet when working-set.max-chunks is above 0.
+     * @return the backend, or null if the name is unknown
+     */
+    static PageStore forBackend(String backend, World world, DecaDB plugin) {
+        PageStore store = baseBackend(backend, world, plugin);
+
+        if (store != null && plugin.getConfig().getBoolean("integrity.checksums", true)) {
+            store = new ChecksumPageStore(plugin.getLogger(), world, plugin, store, plugin.getMetrics());
+        }
+
+        int workingSetChunks = plugin.getConfig().getInt("working-set.max-chunks", 256);
+        if (store != null && workingSetChunks > 0) {
+            store = new ChunkWorkingSet(plugin.getLogger(), world, plugin, store, workingSetChunks, plugin.getMetrics());
+        }
+
+        return store;
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.decacagle.data;
+
+import com.decacagle.DecaDB;
+import org.bukkit.Chunk;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stores each region's content as a byte array in its chunk's PersistentDataContainer, which is saved with the
+ * chunk's NBT. Writing a region is a single map entry instead of one block per hex digit, with no block palette,
+ * lighting or physics updates involved.
+ * <p>
+ * Entries are keyed by the region's layers, "region_{baseLayer}_{layers}". Characters are stored one byte each,
+ * which covers everything the wool format can hold. With a mirror set, every change is also written as wool
+ * blocks so the data stays visible in game; reads never touch the mirror.
+ */
+public class PdcPageStore implements PageStore {
+
+    private static final String KEY_PREFIX = "region_";
+
+    private World world;
+    private DecaDB plugin;
+    private PageStore mirror;
+
+    public PdcPageStore(World world, DecaDB plugin, PageStore mirror) {
+        this.world = world;
+        this.plugin = plugin;
+        this.mirror = mirror;
+    }
+
+    public String read(Region region) {
+        return new String(readBytes(region), StandardCharsets.ISO_8859_1);
+    }
+
+    public byte[] readBytes(Region region) {
+        byte[] content = container(region).get(keyFor(region), PersistentDataType.BYTE_ARRAY);
+        return content == null ? new byte[0] : content;
+    }
+
+    public String readPrefix(Region region, int charCount) {
+        String content = read(region);
+        return content.substring(0, Math.min(charCount, content.length()));
+    }
+
+    public void write(String body, Region region) {
+        container(region).set(keyFor(region), PersistentDataType.BYTE_ARRAY, body.getBytes(StandardCharsets.ISO_8859_1));
+
+        if (mirror != null) {
+            mirror.write(body, region);
+        }
+    }
+
+    public void writeBytes(ByteBuffer body, Region region) {
+        ByteBuffer mirrored = body.duplicate();
+        byte[] content = new byte[body.remaining()];
+        body.get(content);
+
+        container(region).set(keyFor(region), PersistentDataType.BYTE_ARRAY, content);
+
+        if (mirror != null) {
+            mirror.writeBytes(mirrored, region);
+        }
+    }
+
+    public void writeAt(String text, Region region, int charOffset) {
+        PersistentDataContainer container = container(region);
+        NamespacedKey key = keyFor(region);
+
+        byte[] content = container.get(key, PersistentDataType.BYTE_ARRAY);
+        byte[] patch = text.getBytes(StandardCharsets.ISO_8859_1);
+
+        if (content == null || content.length < charOffset + patch.length) {
+            byte[] grown = new byte[charOffset + patch.length];
+            if (content != null) {
+                System.arraycopy(content, 0, grown, 0, content.length);
+            }
+            content = grown;
+        }
+
+        System.arraycopy(patch, 0, content, charOffset, patch.length);
+        container.set(key, PersistentDataType.BYTE_ARRAY, content);
+
+        if (mirror != null) {
+            mirror.writeAt(text, region, charOffset);
+        }
+    }
+
+    public void replace(String body, Region region) {
+        removeOverlapping(region);
+        container(region).set(keyFor(region), PersistentDataType.BYTE_ARRAY, body.getBytes(StandardCharsets.ISO_8859_1));
+
+        if (mirror != null) {
+            mirror.replace(body, region);
+        }
+    }
+
+    public void delete(Region region) {
+        removeOverlapping(region);
+
+        if (mirror != null) {
+            mirror.delete(region);
+        }
+    }
+
+    private void removeOverlapping(Region region) {
+        PersistentDataContainer container = container(region);
+
+        for (NamespacedKey key : container.getKeys()) {
+            Region stored = regionFor(region, key);
+
+            if (stored != null && stored.overlaps(region)) {
+                container.remove(key);
+            }
+        }
+    }
+
+    public boolean isFull(Region region) {
+        // Whatever they were written as, stored characters read back as two hex digits each
+        return readBytes(region).length * 2L >= region.capacity();
+    }
+
+    private PersistentDataContainer container(Region region) {
+        // Region zIndex covers blocks z = zIndex * 16 - 16 to zIndex * 16 - 1, which is chunk zIndex - 1
+        Chunk chunk = world.getChunkAt(region.xIndex(), region.zIndex() - 1);
+        return chunk.getPersistentDataContainer();
+    }
+
+    private NamespacedKey keyFor(Region region) {
+        return new NamespacedKey(plugin, KEY_PREFIX + region.baseLayer() + "_" + region.layers());
+    }
+
+    /**
+     * Parses one of our keys back into the region it stores, in the same chunk as inChunk, or null for other keys
+     */
+    private Region regionFor(Region inChunk, NamespacedKey key) {
+        if (!key.getNamespace().equals(plugin.getName().toLowerCase()) || !key.getKey().startsWith(KEY_PREFIX)) {
+            return null;
+        }
+
+        String[] layers = key.getKey().substring(KEY_PREFIX.length()).split("_");
+
+        try {
+            return new Region(inChunk.xIndex(), inChunk.zIndex(), Integer.parseInt(layers[0]), Integer.parseInt(layers[1]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+}
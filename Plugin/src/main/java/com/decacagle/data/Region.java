@@ -0,0 +1,36 @@
+package com.decacagle.data;
+
+/**
+ * A run of whole layers within one chunk: the whole chunk, or one slot of it.
+ * Regions are addressed by chunk index like the rest of DataWorker: blocks x = xIndex * 16 to xIndex * 16 + 15,
+ * z = zIndex * 16 - 1 down to zIndex * 16 - 16, and y from -64 + baseLayer for layers layers.
+ */
+public record Region(int xIndex, int zIndex, int baseLayer, int layers) {
+
+    public static final int CHUNK_LAYERS = 384;
+
+    public static Region chunk(int xIndex, int zIndex) {
+        return new Region(xIndex, zIndex, 0, CHUNK_LAYERS);
+    }
+
+    public static Region slot(int xIndex, int zIndex, int slot, int slotsPerChunk) {
+        int layers = CHUNK_LAYERS / slotsPerChunk;
+        return new Region(xIndex, zIndex, slot * layers, layers);
+    }
+
+    /**
+     * Number of hex digits the region holds, one per block
+     */
+    public int capacity() {
+        return layers * 256;
+    }
+
+    /**
+     * Whether the two regions share any blocks
+     */
+    public boolean overlaps(Region other) {
+        return xIndex == other.xIndex && zIndex == other.zIndex
+                && baseLayer < other.baseLayer + other.layers && other.baseLayer < baseLayer + layers;
+    }
+
+}
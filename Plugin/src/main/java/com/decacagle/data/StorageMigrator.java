@@ -0,0 +1,153 @@
+package com.decacagle.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Copies a whole database from one storage backend to another by walking its structures: the table chain with
+ * each table's start index, rows and overflow pages (the freeChunks table included), and the file chain with
+ * each file's data. Regions that aren't reachable, such as deleted rows, are left behind.
+ * Buffered writes have to be flushed to the source before a migration starts.
+ */
+public class StorageMigrator {
+
+    // Same bound as DataWorker puts on content spanning several chunks
+    private static final int MAX_SPANNING_CHUNKS = 4096;
+
+    private Logger logger;
+    private TableManager tableManager;
+
+    private int regionsCopied;
+
+    public StorageMigrator(Logger logger, TableManager tableManager) {
+        this.logger = logger;
+        this.tableManager = tableManager;
+    }
+
+    /**
+     * @return the number of regions copied
+     */
+    public int migrate(PageStore from, PageStore to) {
+        regionsCopied = 0;
+
+        migrateTables(from, to);
+        migrateFiles(from, to);
+
+        logger.info("Migrated " + regionsCopied + " regions to the new storage backend");
+
+        return regionsCopied;
+    }
+
+    private void migrateTables(PageStore from, PageStore to) {
+        String startIndex = copy(from, to, Region.chunk(0, 1));
+        Set<Integer> visited = new HashSet<>();
+
+        int tableIndex = parseIndex(startIndex);
+
+        while (tableIndex != 0 && visited.add(tableIndex)) {
+            String metadata = copy(from, to, Region.chunk(0, tableIndex + 1));
+
+            if (!DataUtilities.isValidTableMetadata(metadata)) {
+                logger.warning("Stopped migrating tables at corrupt metadata for table " + tableIndex);
+                break;
+            }
+
+            int slots = DataUtilities.parseTableSlots(metadata);
+            if (!DataUtilities.isValidSlotCount(slots)) {
+                slots = 1;
+            }
+
+            migrateRows(from, to, tableIndex, slots);
+            migrateOverflow(from, to, tableIndex);
+
+            tableIndex = DataUtilities.parseNextIndexTable(metadata);
+        }
+    }
+
+    private void migrateRows(PageStore from, PageStore to, int tableIndex, int slots) {
+        String startIndex = copy(from, to, Region.chunk(1, tableIndex + 1));
+        Set<Integer> visited = new HashSet<>();
+
+        int rowIndex = parseIndex(startIndex);
+
+        while (rowIndex != 0 && visited.add(rowIndex)) {
+            String row = copy(from, to, tableManager.rowRegion(tableIndex, rowIndex, slots));
+
+            if (row.isEmpty()) {
+                logger.warning("Stopped migrating table " + tableIndex + " at missing row " + rowIndex);
+                break;
+            }
+
+            rowIndex = DataUtilities.parseNextIndexRow(row);
+        }
+    }
+
+    private void migrateOverflow(PageStore from, PageStore to, int tableIndex) {
+        OverflowManager overflow = tableManager.getOverflowManager();
+
+        int pageCount = parseIndex(copy(from, to, overflow.counterRegion(tableIndex)));
+
+        // Freed pages are empty, so copying every page ever allocated only moves the live ones
+        for (int page = 1; page <= pageCount; page++) {
+            copy(from, to, overflow.pageRegion(tableIndex, page));
+        }
+    }
+
+    private void migrateFiles(PageStore from, PageStore to) {
+        String startIndex = copy(from, to, Region.chunk(0, -1));
+        Set<Integer> visited = new HashSet<>();
+
+        int fileIndex = parseIndex(startIndex);
+
+        while (fileIndex != 0 && visited.add(fileIndex)) {
+            String metadata = copy(from, to, Region.chunk(0, -fileIndex - 1));
+
+            if (!DataUtilities.isValidFileMetadata(metadata)) {
+                logger.warning("Stopped migrating files at corrupt metadata for file " + fileIndex);
+                break;
+            }
+
+            copySpanning(from, to, 1, -fileIndex - 1);
+
+            fileIndex = DataUtilities.parseNextIndexTable(metadata);
+        }
+    }
+
+    private String copy(PageStore from, PageStore to, Region region) {
+        // Copied as bytes, so raw file data keeps the leading zero of bytes below 0x10
+        byte[] content = from.readBytes(region);
+
+        if (content.length > 0) {
+            to.delete(region);
+            to.writeBytes(ByteBuffer.wrap(content), region);
+            regionsCopied++;
+        }
+
+        return new String(content, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Copies content that carries on into the next chunk along X for as long as each chunk is full
+     */
+    private void copySpanning(PageStore from, PageStore to, int xIndex, int zIndex) {
+        Region region = Region.chunk(xIndex, zIndex);
+        copy(from, to, region);
+
+        for (int chunks = 1; chunks < MAX_SPANNING_CHUNKS && from.isFull(region); chunks++) {
+            region = Region.chunk(region.xIndex() + 1, zIndex);
+            copy(from, to, region);
+        }
+    }
+
+    private static int parseIndex(String text) {
+        try {
+            return text.isEmpty() ? 0 : Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
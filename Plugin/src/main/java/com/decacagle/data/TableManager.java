@@ -1,6 +1,7 @@
 package com.decacagle.data;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import org.bukkit.Material;
@@ -8,6 +9,11 @@ import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.Sign;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 public class TableManager {
@@ -15,13 +21,27 @@ public class TableManager {
     private Logger logger;
     private World world;
     private DataWorker worker;
+    private OverflowManager overflow;
+    private ContentVersions versions;
 
     private final int indexOffset = 1;
 
-    public TableManager(Logger logger, World world, DataWorker worker) {
+    // Slots per row chunk by table index, see getTableSlots
+    private final Map<Integer, Integer> tableSlots = new HashMap<>();
+
+    // Highest row index seen in each table since startup, see readRowsAhead
+    private final Map<Integer, Integer> highestRows = new HashMap<>();
+
+    public TableManager(Logger logger, World world, DataWorker worker, ContentVersions versions) {
         this.logger = logger;
         this.world = world;
         this.worker = worker;
+        this.versions = versions;
+        this.overflow = new OverflowManager(logger, worker, this);
+    }
+
+    public OverflowManager getOverflowManager() {
+        return overflow;
     }
 
     // ==================== FREE CHUNK RECYCLING SYSTEM ====================
@@ -44,6 +64,8 @@ public class TableManager {
      * Used internally to prevent infinite recursion when creating freeChunks table
      */
     private MethodResponse createTableWithoutRecycling(String tableTitle) {
+        versions.tableChanged(tableTitle);
+
         logger.info("Creating table without recycling: " + tableTitle);
 
         int index = getNextTableIndexSequential();
@@ -138,6 +160,8 @@ public class TableManager {
                 return "table_positive_z";
             case "row":
                 return "row_table_" + parentTableIndex;
+            case "overflow":
+                return "overflow_table_" + parentTableIndex;
             default:
                 return "unknown";
         }
@@ -147,6 +171,8 @@ public class TableManager {
      * Insert a row without using recycling (used for freeChunks table)
      */
     private MethodResponse insertRowWithoutRecycling(String tableTitle, String rowData) {
+        versions.tableChanged(tableTitle);
+
         if (rowData.isEmpty()) {
             return new MethodResponse(400, "Bad Request: Body of request is length 0. Your row needs content!", null, true);
         }
@@ -167,7 +193,7 @@ public class TableManager {
         String rowDataWithId = DataUtilities.addValueToJSON(index, "id", rowData);
         String newRowData = DataUtilities.rowBuilder(last, 0, rowDataWithId);
 
-        boolean rowWriteResult = worker.writeToChunk(newRowData, index + indexOffset, tableIndex + indexOffset, false, 1);
+        boolean rowWriteResult = writeRowData(tableIndex, index, newRowData);
 
         if (rowWriteResult) {
             updateLastRowMetadata(index, tableIndex);
@@ -184,16 +210,16 @@ public class TableManager {
         String startIndexText = worker.readChunkSafely(1, tableIndex + 1, false, 1);
 
         if (startIndexText.isEmpty() || startIndexText.equals("0")) {
-            worker.writeToChunk("1", 1, tableIndex + 1, false, 1);
+            worker.replaceChunk("1", 1, tableIndex + indexOffset);
             return 1;
         } else {
             int currentIndex = Integer.parseInt(startIndexText);
-            String currentData = worker.readChunkSafely(currentIndex + indexOffset, tableIndex + indexOffset, false, 1);
+            String currentData = readRowData(tableIndex, currentIndex);
             int nextIndex = DataUtilities.parseNextIndexRow(currentData);
 
             while (nextIndex != 0) {
                 currentIndex = nextIndex;
-                currentData = worker.readChunkSafely(currentIndex + indexOffset, tableIndex + indexOffset, false, 1);
+                currentData = readRowData(tableIndex, currentIndex);
                 nextIndex = DataUtilities.parseNextIndexRow(currentData);
             }
 
@@ -243,6 +269,7 @@ public class TableManager {
 
                 // Remove this chunk from the free list
                 deleteRowWithoutRecycling(freeChunksIndex, chunkId);
+                versions.tableChanged("freeChunks");
 
                 logger.info("Recycling chunk " + chunkIndex + " for " + chunkType + " in coordinate space " + targetCoordinateSpace);
                 return chunkIndex;
@@ -266,7 +293,7 @@ public class TableManager {
             return new MethodResponse(400, "Bad Request: Table doesn't exist or has corrupted metadata!", null, true);
         }
 
-        String rowData = worker.readChunkSafely(rowIndex + indexOffset, tableIndex + indexOffset, false, 1);
+        String rowData = readRowData(tableIndex, rowIndex);
 
         if (rowData.isEmpty()) {
             return new MethodResponse(400, "Bad Request: Row doesn't exist or has corrupted metadata!", null, true);
@@ -277,32 +304,17 @@ public class TableManager {
 
         // Update linked list structure
         if (lastIndex == 0) {
-            worker.deleteChunkCompletely(1, tableIndex + indexOffset, false, 1);
-            worker.writeToChunk("" + nextIndex, 1, tableIndex + indexOffset, false, 1);
+            worker.replaceChunk("" + nextIndex, 1, tableIndex + indexOffset);
         } else {
-            String lastRowData = worker.readChunkSafely(lastIndex + indexOffset, tableIndex + indexOffset, false, 1);
-            String lastContent = DataUtilities.parseRowContent(lastRowData);
-            int lastLast = DataUtilities.parseLastIndexRow(lastRowData);
-
-            String newMeta = DataUtilities.rowBuilder(lastLast, nextIndex, lastContent);
-
-            worker.deleteChunkCompletely(lastIndex + indexOffset, tableIndex + indexOffset, false, 1);
-            worker.writeToChunk(newMeta, lastIndex + indexOffset, tableIndex + indexOffset, false, 1);
+            setRowNextIndex(tableIndex, lastIndex, nextIndex);
         }
 
         if (nextIndex != 0) {
-            String nextMeta = worker.readChunkSafely(nextIndex + indexOffset, tableIndex + indexOffset, false, 1);
-            String nextContent = DataUtilities.parseRowContent(nextMeta);
-            int nextNext = DataUtilities.parseNextIndexRow(nextMeta);
-
-            String newMeta = DataUtilities.rowBuilder(lastIndex, nextNext, nextContent);
-
-            worker.deleteChunkCompletely(nextIndex + indexOffset, tableIndex + indexOffset, false, 1);
-            worker.writeToChunk(newMeta, nextIndex + indexOffset, tableIndex + indexOffset, false, 1);
+            setRowLastIndex(tableIndex, nextIndex, lastIndex);
         }
 
         // Delete target
-        worker.deleteChunkCompletely(rowIndex + indexOffset, tableIndex + indexOffset, false, 1);
+        deleteRowData(tableIndex, rowIndex);
 
         return new MethodResponse(200, "Deleted row from table with success!", "Deleted row from table with success!", false);
     }
@@ -310,6 +322,8 @@ public class TableManager {
     // ==================== INSERT VALUE methods ====================
 
     public MethodResponse insertRow(String tableTitle, String rowData) {
+        versions.tableChanged(tableTitle);
+
         if (rowData.isEmpty()) {
             return new MethodResponse(400, "Bad Request: Body of request is length 0. Your row needs content!", null, true);
         }
@@ -333,13 +347,24 @@ public class TableManager {
             return insertRowWithoutRecycling(tableTitle, rowData);
         }
 
+        if (OverflowManager.hasOverflow(rowData)) {
+            return new MethodResponse(400, "Bad Request: " + OverflowManager.OVERFLOW_KEY + " is a reserved key!", null, true);
+        }
+
         int index = getNextRowIndex(tableIndex, tableTitle);
         int last = index - 1;
 
         String rowDataWithId = DataUtilities.addValueToJSON(index, "id", rowData);
-        String newRowData = DataUtilities.rowBuilder(last, 0, rowDataWithId);
 
-        boolean rowWriteResult = worker.writeToChunk(newRowData, index + indexOffset, tableIndex + indexOffset, false, 1);
+        // Rows too large for their slot keep their largest fields in overflow pages
+        String inlineContent = overflow.spill(tableIndex, rowDataWithId, getTableSlots(tableIndex));
+        if (inlineContent == null) {
+            return new MethodResponse(500, "Internal Server Error: Failed to write row, is the data too large?", null, true);
+        }
+
+        String newRowData = DataUtilities.rowBuilder(last, 0, inlineContent);
+
+        boolean rowWriteResult = writeRowData(tableIndex, index, newRowData);
 
         if (rowWriteResult) {
             updateLastRowMetadata(index, tableIndex);
@@ -365,33 +390,160 @@ public class TableManager {
 
     public void updateLastRowMetadata(int index, int tableIndex) {
         if (index != 1) {
-            String metadata = worker.readChunkSafely((index - 1) + indexOffset, tableIndex + indexOffset, false, 1);
+            setRowNextIndex(tableIndex, index - 1, index);
+        }
+    }
+
+    /**
+     * Points a row's next pointer at nextIndex. Rows with a fixed-width header only get their pointer blocks
+     * rewritten; older rows are rewritten in full, which also upgrades them to the fixed-width header.
+     */
+    private void setRowNextIndex(int tableIndex, int rowIndex, int nextIndex) {
+        String header = readRowHeader(tableIndex, rowIndex);
+
+        if (DataUtilities.hasFixedRowHeader(header)) {
+            writeInRow(tableIndex, rowIndex, DataUtilities.rowPointerBuilder(nextIndex), DataUtilities.ROW_NEXT_OFFSET);
+        } else {
+            String rowData = readRowData(tableIndex, rowIndex);
+            int last = DataUtilities.parseLastIndexRow(rowData);
+            String content = DataUtilities.parseRowContent(rowData);
+
+            writeRowData(tableIndex, rowIndex, DataUtilities.rowBuilder(last, nextIndex, content));
+        }
+    }
+
+    /**
+     * Points a row's last pointer at lastIndex, see setRowNextIndex
+     */
+    private void setRowLastIndex(int tableIndex, int rowIndex, int lastIndex) {
+        String header = readRowHeader(tableIndex, rowIndex);
+
+        if (DataUtilities.hasFixedRowHeader(header)) {
+            writeInRow(tableIndex, rowIndex, DataUtilities.rowPointerBuilder(lastIndex), DataUtilities.ROW_LAST_OFFSET);
+        } else {
+            String rowData = readRowData(tableIndex, rowIndex);
+            int next = DataUtilities.parseNextIndexRow(rowData);
+            String content = DataUtilities.parseRowContent(rowData);
 
-            int last = DataUtilities.parseLastIndexRow(metadata);
-            String rowContent = DataUtilities.parseRowContent(metadata);
+            writeRowData(tableIndex, rowIndex, DataUtilities.rowBuilder(lastIndex, next, content));
+        }
+    }
 
-            worker.deleteChunkCompletely((index - 1) + indexOffset, tableIndex + indexOffset, false, 1);
+    // ==================== ROW LOCATION ====================
 
-            String newMetadata = DataUtilities.rowBuilder(last, index, rowContent);
+    /*
+     * Row n of a table with s slots per chunk lives in slot (n - 1) % s of row chunk (n - 1) / s, and row chunks
+     * start right after the table's start index chunk. With one slot per chunk this is the original layout of
+     * one row per chunk at x = n + indexOffset.
+     */
 
-            worker.writeToChunk(newMetadata, (index - 1) + indexOffset, tableIndex + indexOffset, false, 1);
+    /**
+     * Number of slots per row chunk for the table, read from its metadata once and then cached
+     */
+    public int getTableSlots(int tableIndex) {
+        Integer cached = tableSlots.get(tableIndex);
+        if (cached != null) {
+            return cached;
         }
+
+        String metadata = worker.readChunkSafely(0, tableIndex + indexOffset, false, 1);
+        int slots = DataUtilities.isValidTableMetadata(metadata) ? DataUtilities.parseTableSlots(metadata) : 1;
+
+        if (!DataUtilities.isValidSlotCount(slots)) {
+            logger.warning("Table at index " + tableIndex + " has an invalid slot count " + slots + ", using 1");
+            slots = 1;
+        }
+
+        tableSlots.put(tableIndex, slots);
+        return slots;
+    }
+
+    private int rowChunkX(int rowIndex, int slots) {
+        return (rowIndex - 1) / slots + 1 + indexOffset;
+    }
+
+    private int rowSlot(int rowIndex, int slots) {
+        return (rowIndex - 1) % slots;
+    }
+
+    /**
+     * The region holding row rowIndex of the table at tableIndex, for code that works on regions directly
+     */
+    public Region rowRegion(int tableIndex, int rowIndex, int slots) {
+        return Region.slot(rowChunkX(rowIndex, slots), tableIndex + indexOffset, rowSlot(rowIndex, slots), slots);
+    }
+
+    private String readRowData(int tableIndex, int rowIndex) {
+        int slots = getTableSlots(tableIndex);
+        String rowData = worker.readSlot(rowChunkX(rowIndex, slots), tableIndex + indexOffset, rowSlot(rowIndex, slots), slots);
+
+        if (!rowData.isEmpty()) {
+            highestRows.merge(tableIndex, rowIndex, Math::max);
+        }
+
+        return rowData;
+    }
+
+    /**
+     * Starts loading the chunk of the next row of a scan, and the row chunks after it, in the background.
+     * Rows are mostly chained in index order, so the following chunks are usually next. It stops at the chunk of
+     * the highest row seen in the table, as nothing is known to be stored past it.
+     */
+    private void readRowsAhead(int tableIndex, int nextRowIndex) {
+        if (nextRowIndex > 0) {
+            int slots = getTableSlots(tableIndex);
+            int highest = Math.max(nextRowIndex, highestRows.getOrDefault(tableIndex, 0));
+            int chunks = rowChunkX(highest, slots) - rowChunkX(nextRowIndex, slots) + 1;
+
+            worker.readAhead(rowChunkX(nextRowIndex, slots), tableIndex + indexOffset, 1, chunks);
+        }
+    }
+
+    private String readRowHeader(int tableIndex, int rowIndex) {
+        int slots = getTableSlots(tableIndex);
+        return worker.readSlotPrefix(rowChunkX(rowIndex, slots), tableIndex + indexOffset, rowSlot(rowIndex, slots), slots, DataUtilities.ROW_HEADER_LENGTH);
+    }
+
+    /**
+     * Replaces the row's content with rowData
+     * @return false if rowData doesn't fit in the row's slot, in which case nothing is written
+     */
+    private boolean writeRowData(int tableIndex, int rowIndex, String rowData) {
+        int slots = getTableSlots(tableIndex);
+        highestRows.merge(tableIndex, rowIndex, Math::max);
+        return worker.replaceSlot(rowData, rowChunkX(rowIndex, slots), tableIndex + indexOffset, rowSlot(rowIndex, slots), slots);
+    }
+
+    private void writeInRow(int tableIndex, int rowIndex, String text, int charOffset) {
+        int slots = getTableSlots(tableIndex);
+        worker.writeInSlot(text, rowChunkX(rowIndex, slots), tableIndex + indexOffset, rowSlot(rowIndex, slots), slots, charOffset);
+    }
+
+    private void deleteRowData(int tableIndex, int rowIndex) {
+        int slots = getTableSlots(tableIndex);
+        worker.deleteSlot(rowChunkX(rowIndex, slots), tableIndex + indexOffset, rowSlot(rowIndex, slots), slots);
     }
 
     // ==================== UPDATE methods ====================
 
     public MethodResponse updateRow(String tableTitle, int rowId, String content) {
+        versions.tableChanged(tableTitle);
+
         if (content.isEmpty()) {
             return new MethodResponse(400, "Bad Request: No new data provided!", null, true);
         }
 
+        if (OverflowManager.hasOverflow(content)) {
+            return new MethodResponse(400, "Bad Request: " + OverflowManager.OVERFLOW_KEY + " is a reserved key!", null, true);
+        }
+
         int tableIndex = worker.getTableIndex(tableTitle, indexOffset);
 
         if (tableIndex == 0) {
             return new MethodResponse(400, "Bad Request: Table doesn't exist or has corrupted metadata!", null, true);
         }
 
-        String currentData = worker.readChunkSafely(rowId + indexOffset, tableIndex + indexOffset, false, 1);
+        String currentData = readRowData(tableIndex, rowId);
 
         if (currentData.isEmpty()) {
             return new MethodResponse(400, "Bad Request: There is no id " + rowId + " in table " + tableTitle + "!", null, true);
@@ -399,10 +551,19 @@ public class TableManager {
             int lastIndex = DataUtilities.parseLastIndexRow(currentData);
             int nextIndex = DataUtilities.parseNextIndexRow(currentData);
 
-            String newContent = DataUtilities.rowBuilder(lastIndex, nextIndex, content);
+            String inlineContent = overflow.spill(tableIndex, content, getTableSlots(tableIndex));
+            if (inlineContent == null) {
+                return new MethodResponse(500, "Internal Server Error: Failed to update row, is the data too large?", null, true);
+            }
 
-            worker.deleteChunkCompletely(rowId + indexOffset, tableIndex + indexOffset, false, 1);
-            worker.writeToChunk(newContent, rowId + indexOffset, tableIndex + indexOffset, false, 1);
+            String newContent = DataUtilities.rowBuilder(lastIndex, nextIndex, inlineContent);
+
+            if (!writeRowData(tableIndex, rowId, newContent)) {
+                return new MethodResponse(500, "Internal Server Error: Failed to update row, is the data too large?", null, true);
+            }
+
+            // The old content's overflow pages are unreachable now
+            overflow.free(tableIndex, DataUtilities.parseRowContent(currentData));
 
             return new MethodResponse(200, "Successfully updated id " + rowId + " in " + tableTitle, "Successfully updated id " + rowId + " in " + tableTitle, false);
         }
@@ -442,7 +603,34 @@ public class TableManager {
         return new MethodResponse(200, "Successfully read rows where " + key + " == " + target, result, false);
     }
 
+    /**
+     * Reads rows where key == target that also belong to the given user, merging the row-level-security
+     * check into the scan so protected reads only keep the caller's rows in a single pass
+     */
+    public MethodResponse readTableWithConditionForUser(String tableTitle, String key, String target, int userId) {
+        if (tableTitle.isEmpty()) {
+            return new MethodResponse(400, "Bad Request: No title table provided!", null, true);
+        }
+
+        int tableIndex = worker.getTableIndex(tableTitle, indexOffset);
+
+        if (tableIndex == 0) {
+            return new MethodResponse(400, "Bad Request: Table doesn't exist or has corrupted metadata!", null, true);
+        }
+
+        String result = gatherRowsWithConditions(tableIndex, key, target, "userId", "" + userId);
+
+        return new MethodResponse(200, "Successfully read rows where " + key + " == " + target + " for user " + userId, result, false);
+    }
+
     public String gatherRowsWithCondition(int tableIndex, String key, String target) {
+        return gatherRowsWithConditions(tableIndex, key, target, null, null);
+    }
+
+    /**
+     * Walks the table's rows once, keeping those where key == target and, if secondKey is not null, secondKey == secondTarget
+     */
+    public String gatherRowsWithConditions(int tableIndex, String key, String target, String secondKey, String secondTarget) {
         StringBuilder jsonArrayBuilder = new StringBuilder("[");
 
         String tableStartIndex = worker.readChunkSafely(1, tableIndex + indexOffset, false, 1);
@@ -452,41 +640,31 @@ public class TableManager {
             return jsonArrayBuilder.toString();
         }
 
-        int currentIndex = Integer.parseInt(tableStartIndex);
-        String currentRow = worker.readChunkSafely(currentIndex + 1, tableIndex + 1, false, 1);
-        String content = DataUtilities.parseRowContent(currentRow);
-        int nextIndex = DataUtilities.parseNextIndexRow(currentRow);
-
-        if (DataUtilities.meetsCondition(content, key, target)) {
-            if (nextIndex == 0) {
-                jsonArrayBuilder.append(content);
-            } else {
-                jsonArrayBuilder.append(content);
-                jsonArrayBuilder.append(",");
-            }
+        int nextIndex = Integer.parseInt(tableStartIndex);
+        Set<String> conditionKeys = new HashSet<>();
+        conditionKeys.add(key);
+        if (secondKey != null) {
+            conditionKeys.add(secondKey);
         }
 
         while (nextIndex != 0) {
-            currentIndex = nextIndex;
-            currentRow = worker.readChunkSafely(currentIndex + 1, tableIndex + 1, false, 1);
-            content = DataUtilities.parseRowContent(currentRow);
+            String currentRow = readRowData(tableIndex, nextIndex);
+            String content = DataUtilities.parseRowContent(currentRow);
             nextIndex = DataUtilities.parseNextIndexRow(currentRow);
-            boolean matches = DataUtilities.meetsCondition(content, key, target);
 
-            if (matches) {
-                if (nextIndex == 0) {
-                    jsonArrayBuilder.append(content);
-                } else {
-                    jsonArrayBuilder.append(content);
+            readRowsAhead(tableIndex, nextIndex);
+
+            // Only fetch overflow pages for the compared fields, and for the rest of the row once it matches
+            String compared = overflow.resolve(tableIndex, content, conditionKeys);
+
+            if (DataUtilities.meetsConditions(compared, key, target, secondKey, secondTarget)) {
+                if (jsonArrayBuilder.length() > 1) {
                     jsonArrayBuilder.append(",");
                 }
+                jsonArrayBuilder.append(overflow.resolve(tableIndex, compared));
             }
         }
 
-        // triple check for the damn mysterious leading comma
-        if (jsonArrayBuilder.charAt(jsonArrayBuilder.length() - 1) == ',') {
-            jsonArrayBuilder.deleteCharAt(jsonArrayBuilder.length() - 1);
-        }
         jsonArrayBuilder.append("]");
 
         return jsonArrayBuilder.toString();
@@ -503,9 +681,13 @@ public class TableManager {
         }
 
         int currentIndex = Integer.parseInt(tableStartIndex);
-        String currentRow = worker.readChunkSafely(currentIndex + indexOffset, tableIndex + indexOffset, false, 1);
-        String content = DataUtilities.parseRowContent(currentRow);
+        readRowsAhead(tableIndex, currentIndex);
+
+        String currentRow = readRowData(tableIndex, currentIndex);
         int nextIndex = DataUtilities.parseNextIndexRow(currentRow);
+        readRowsAhead(tableIndex, nextIndex);
+
+        String content = overflow.resolve(tableIndex, DataUtilities.parseRowContent(currentRow));
 
         if (nextIndex == 0) {
             jsonArrayBuilder.append(content);
@@ -516,9 +698,11 @@ public class TableManager {
 
         while (nextIndex != 0) {
             currentIndex = nextIndex;
-            currentRow = worker.readChunkSafely(currentIndex + indexOffset, tableIndex + indexOffset, false, 1);
-            content = DataUtilities.parseRowContent(currentRow);
+            currentRow = readRowData(tableIndex, currentIndex);
             nextIndex = DataUtilities.parseNextIndexRow(currentRow);
+            readRowsAhead(tableIndex, nextIndex);
+
+            content = overflow.resolve(tableIndex, DataUtilities.parseRowContent(currentRow));
 
             jsonArrayBuilder.append(content);
             if (nextIndex != 0)
@@ -547,13 +731,13 @@ public class TableManager {
             return new MethodResponse(400, "Bad Request: Table doesn't exist or has corrupted metadata!", null, true);
         }
 
-        String rowData = worker.readChunkSafely(rowIndex + indexOffset, tableIndex + indexOffset, false, 1);
+        String rowData = readRowData(tableIndex, rowIndex);
 
         if (rowData.isEmpty()) {
             return new MethodResponse(400, "Bad Request: Row doesn't exist or has corrupted metadata!", null, true);
         }
 
-        String content = DataUtilities.parseRowContent(rowData);
+        String content = overflow.resolve(tableIndex, DataUtilities.parseRowContent(rowData));
 
         return new MethodResponse(200, "Successfully read from index " + rowIndex + " in " + tableTitle + "!", content, false);
     }
@@ -561,10 +745,24 @@ public class TableManager {
     // ==================== CREATE TABLE methods ====================
 
     public MethodResponse createTable(String tableTitle) {
+        return createTable(tableTitle, 1);
+    }
+
+    /**
+     * Creates a table whose row chunks are each split into slotsPerChunk slots, so up to slotsPerChunk rows
+     * share one chunk. Every row then has to fit in 384 / slotsPerChunk layers.
+     */
+    public MethodResponse createTable(String tableTitle, int slotsPerChunk) {
+        versions.tableChanged(tableTitle);
+
         if (tableTitle.isEmpty()) {
             return new MethodResponse(400, "Bad Request: Body of request is length 0. Your table needs a title!", null, true);
         }
 
+        if (!DataUtilities.isValidSlotCount(slotsPerChunk)) {
+            return new MethodResponse(400, "Bad Request: Slots per chunk must divide " + DataUtilities.MAX_SLOTS_PER_CHUNK + ", received " + slotsPerChunk + "!", null, true);
+        }
+
         if (worker.getTableIndex(tableTitle, indexOffset) != 0) {
             return new MethodResponse(400, "Bad Request: A table with that name already exists!", null, true);
         }
@@ -576,10 +774,14 @@ public class TableManager {
         int last = index - 1;
 
         String newFileMetadata = DataUtilities.tableMetadataBuilder(tableTitle, last, 0);
+        if (slotsPerChunk > 1) {
+            newFileMetadata += "," + DataUtilities.tableSlotsBuilder(slotsPerChunk);
+        }
 
         boolean metadataWriteResult = worker.writeToChunk(newFileMetadata, 0, index + indexOffset, false, 1);
 
         if (metadataWriteResult) {
+            tableSlots.put(index, slotsPerChunk);
             updateLastTableMetadata(index);
             placeTableSign(tableTitle, index);
 
@@ -601,6 +803,11 @@ public class TableManager {
     }
 
     public void placeTableSign(String fileTitle, int fileIndex) {
+        // Running off-server on a MemoryPageStore, there is no world to put signs in
+        if (world == null) {
+            return;
+        }
+
         Block block = world.getBlockAt(-1, -63, (fileIndex * 16) + (indexOffset * 16) - 1);
 
         block.setType(Material.OAK_SIGN);
@@ -616,12 +823,11 @@ public class TableManager {
         if (index != 1) {
             String metadata = worker.readChunkSafely(0, (index - 1) + indexOffset, false, 1);
 
-            String title = DataUtilities.parseTitle(metadata);
             int last = DataUtilities.parseLastIndexTable(metadata);
 
             worker.deleteChunkCompletely(0, (index - 1) + indexOffset, false, 1);
 
-            String newMetadata = DataUtilities.tableMetadataBuilder(title, last, index);
+            String newMetadata = DataUtilities.relinkTableMetadata(metadata, last, index);
 
             worker.writeToChunk(newMetadata, 0, (index - 1) + indexOffset, false, 1);
         }
@@ -654,6 +860,8 @@ public class TableManager {
         int lastIndex = DataUtilities.parseLastIndexTable(metadata);
         int nextIndex = DataUtilities.parseNextIndexTable(metadata);
 
+        versions.tableChanged(targetTitle);
+
         logger.info("target table title: " + targetTitle);
         logger.info("target table lastIndex: " + lastIndex);
         logger.info("target table nextIndex: " + nextIndex);
@@ -664,10 +872,9 @@ public class TableManager {
         } else {
             // otherwise, update nextIndex of target's last to be target's nextIndex
             String lastMeta = worker.readChunkSafely(0, lastIndex + indexOffset, false, 1);
-            String lastTitle = DataUtilities.parseTitle(lastMeta);
             int lastLast = DataUtilities.parseLastIndexTable(lastMeta);
 
-            String newMeta = DataUtilities.tableMetadataBuilder(lastTitle, lastLast, nextIndex);
+            String newMeta = DataUtilities.relinkTableMetadata(lastMeta, lastLast, nextIndex);
 
             logger.info("Updating metadata for previous table in the chain, setting nextIndex to " + nextIndex);
 
@@ -678,12 +885,11 @@ public class TableManager {
         // if target table has a nextIndex, update nextIndex's last to be target's last
         if (nextIndex != 0) {
             String nextMeta = worker.readChunkSafely(0, nextIndex + indexOffset, false, 1);
-            String nextTitle = DataUtilities.parseTitle(nextMeta);
             int nextNext = DataUtilities.parseNextIndexTable(nextMeta);
 
             logger.info("Updating metadata for next table in the chain, setting lastIndex to " + lastIndex);
 
-            String newMeta = DataUtilities.tableMetadataBuilder(nextTitle, lastIndex, nextNext);
+            String newMeta = DataUtilities.relinkTableMetadata(nextMeta, lastIndex, nextNext);
 
             worker.deleteChunkCompletely(0, nextIndex + indexOffset, false, 1);
             worker.writeToChunk(newMeta, 0, nextIndex + indexOffset, false, 1);
@@ -693,10 +899,16 @@ public class TableManager {
 
         int rowsDeleted = deleteAllRows(index);
 
+        // Rows and overflow pages have just been freed, and a table created at this index later starts with none
+        forgetFreeChunks(index);
+        overflow.resetCounter(index);
+
         // delete target's startIndex
         worker.deleteChunkCompletely(1, index + indexOffset, false, 1);
         // delete target's metadata
         worker.deleteChunkCompletely(0, index + indexOffset, false, 1);
+        tableSlots.remove(index);
+        highestRows.remove(index);
 
         // Add the deleted table chunks to free chunks for recycling
         addToFreeChunks(index, "table", 0);
@@ -704,6 +916,28 @@ public class TableManager {
         return new MethodResponse(200, "Deleted table " + targetTitle + " with success! Rows deleted: " + rowsDeleted, "Deleted table " + targetTitle + " with success! Rows deleted: " + rowsDeleted, false);
     }
 
+    /**
+     * Drops the free chunk entries kept for a table's rows and overflow pages, so a table created later at the same
+     * index doesn't recycle chunks it never had
+     */
+    private void forgetFreeChunks(int tableIndex) {
+        int freeChunksIndex = worker.getTableIndex("freeChunks", indexOffset);
+
+        if (freeChunksIndex == 0 || freeChunksIndex == tableIndex) {
+            return;
+        }
+
+        for (String coordinateSpace : List.of(getCoordinateSpace("row", tableIndex), getCoordinateSpace("overflow", tableIndex))) {
+            JsonArray entries = JsonParser.parseString(gatherRowsWithCondition(freeChunksIndex, "coordinateSpace", coordinateSpace)).getAsJsonArray();
+
+            for (JsonElement entry : entries) {
+                deleteRowWithoutRecycling(freeChunksIndex, entry.getAsJsonObject().get("id").getAsInt());
+            }
+        }
+
+        versions.tableChanged("freeChunks");
+    }
+
     public int deleteAllRows(int tableIndex) {
         String tableStartIndex = worker.readChunkSafely(1, tableIndex + indexOffset, false, 1);
 
@@ -719,18 +953,20 @@ public class TableManager {
         int counter = 1;
 
         int currentIndex = Integer.parseInt(tableStartIndex);
-        String currentRow = worker.readChunkSafely(currentIndex + indexOffset, tableIndex + indexOffset, false, 1);
+        String currentRow = readRowData(tableIndex, currentIndex);
         int nextIndex = DataUtilities.parseNextIndexRow(currentRow);
-        worker.deleteChunkCompletely(currentIndex + indexOffset, tableIndex + indexOffset, false, 1);
+        overflow.free(tableIndex, DataUtilities.parseRowContent(currentRow));
+        deleteRowData(tableIndex, currentIndex);
 
         // Add deleted row to free chunks
         addToFreeChunks(currentIndex, "row", tableIndex);
 
         while (nextIndex != 0) {
             currentIndex = nextIndex;
-            currentRow = worker.readChunkSafely(currentIndex + 1, tableIndex + indexOffset, false, 1);
+            currentRow = readRowData(tableIndex, currentIndex);
             nextIndex = DataUtilities.parseNextIndexRow(currentRow);
-            worker.deleteChunkCompletely(currentIndex + indexOffset, tableIndex + indexOffset, false, 1);
+            overflow.free(tableIndex, DataUtilities.parseRowContent(currentRow));
+            deleteRowData(tableIndex, currentIndex);
 
             // Add deleted row to free chunks
             addToFreeChunks(currentIndex, "row", tableIndex);
@@ -738,63 +974,58 @@ public class TableManager {
             counter++;
         }
 
-        worker.deleteChunkCompletely(currentIndex + indexOffset, tableIndex + indexOffset, false, 1);
+        deleteRowData(tableIndex, currentIndex);
 
-        worker.writeToChunk("0", 1, tableIndex + indexOffset, false, 1);
+        worker.replaceChunk("0", 1, tableIndex + indexOffset);
 
         return counter;
     }
 
+    /**
+     * Deletes the rows where key == target, leaving the rest of the table alone
+     * @return how many rows were deleted
+     */
     public int deleteAllRowsWithCondition(int tableIndex, String key, String target) {
         String tableStartIndex = worker.readChunkSafely(1, tableIndex + indexOffset, false, 1);
 
-        if (tableStartIndex.isEmpty()) {
-            return 0;
-        }
-
-        if (tableStartIndex.equals("0")) {
-            worker.deleteChunkCompletely(1, tableIndex + indexOffset, false, 1);
+        if (tableStartIndex.isEmpty() || tableStartIndex.equals("0")) {
             return 0;
         }
 
-        int counter = 1;
-
-        int currentIndex = Integer.parseInt(tableStartIndex);
-        String currentRow = worker.readChunkSafely(currentIndex + indexOffset, tableIndex + indexOffset, false, 1);
-        int nextIndex = DataUtilities.parseNextIndexRow(currentRow);
-
-        String currentContent = DataUtilities.parseRowContent(currentRow);
-        if (DataUtilities.meetsCondition(currentContent, key, target)) {
-            deleteRow(tableIndex, currentIndex);
-        }
+        int deleted = 0;
+        int nextIndex = Integer.parseInt(tableStartIndex);
 
         while (nextIndex != 0) {
-            currentIndex = nextIndex;
-            currentRow = worker.readChunkSafely(currentIndex + 1, tableIndex + indexOffset, false, 1);
+            int currentIndex = nextIndex;
+            String currentRow = readRowData(tableIndex, currentIndex);
             nextIndex = DataUtilities.parseNextIndexRow(currentRow);
 
-            currentContent = DataUtilities.parseRowContent(currentRow);
-            if (DataUtilities.meetsCondition(currentContent, key, target)) {
-                deleteRow(tableIndex, currentIndex);
-            }
-
-            counter++;
-        }
+            readRowsAhead(tableIndex, nextIndex);
 
-        worker.deleteChunkCompletely(currentIndex + indexOffset, tableIndex + indexOffset, false, 1);
+            // The compared field may have been moved to an overflow page, so fetch it before comparing
+            String currentContent = overflow.resolve(tableIndex, DataUtilities.parseRowContent(currentRow), Set.of(key));
 
-        worker.writeToChunk("0", 1, tableIndex + indexOffset, false, 1);
+            if (DataUtilities.meetsCondition(currentContent, key, target) && !deleteRow(tableIndex, currentIndex).hasError()) {
+                deleted++;
+            }
+        }
 
-        return counter;
+        return deleted;
     }
 
     public void deleteTableSign(int fileIndex) {
+        if (world == null) {
+            return;
+        }
+
         world.getBlockAt(-1, -63, (fileIndex * 16) + (indexOffset * 16) - 1).setType(Material.AIR);
     }
 
     // ==================== DELETE * FROM methods ====================
 
     public MethodResponse deleteAllFromTable(String tableTitle) {
+        versions.tableChanged(tableTitle);
+
         int tableIndex = worker.getTableIndex(tableTitle, indexOffset);
 
         if (tableIndex == 0) {
@@ -807,6 +1038,8 @@ public class TableManager {
     }
 
     public MethodResponse deleteAllFromTableWithCondition(String tableTitle, String key, String target) {
+        versions.tableChanged(tableTitle);
+
         int tableIndex = worker.getTableIndex(tableTitle, indexOffset);
 
         if (tableIndex == 0) {
@@ -821,6 +1054,8 @@ public class TableManager {
     // ==================== DELETE {id} methods ====================
 
     public MethodResponse deleteRow(String tableTitle, int rowIndex) {
+        versions.tableChanged(tableTitle);
+
         if (rowIndex <= 0) {
             return new MethodResponse(400, "Bad Request: Row indexes are 1-based", null, true);
         }
@@ -852,12 +1087,13 @@ public class TableManager {
         boolean isRecyclable = true;
         if (DataUtilities.isValidTableMetadata(tableMetadata)) {
             String tableTitle = DataUtilities.parseTitle(tableMetadata);
+            versions.tableChanged(tableTitle);
             if ("freeChunks".equals(tableTitle) || "files".equals(tableTitle)) {
                 isRecyclable = false;
             }
         }
 
-        String rowData = worker.readChunkSafely(rowIndex + indexOffset, tableIndex + indexOffset, false, 1);
+        String rowData = readRowData(tableIndex, rowIndex);
 
         if (rowData.isEmpty()) {
             return new MethodResponse(400, "Bad Request: Row doesn't exist or has corrupted metadata!", null, true);
@@ -871,37 +1107,23 @@ public class TableManager {
 
         // if target has no last index, update start index to be target's next index
         if (lastIndex == 0) {
-            worker.deleteChunkCompletely(1, tableIndex + indexOffset, false, 1);
-            worker.writeToChunk("" + nextIndex, 1, tableIndex + indexOffset, false, 1);
+            worker.replaceChunk("" + nextIndex, 1, tableIndex + indexOffset);
         } else {
             // otherwise, update nextIndex of target's last to be target's nextIndex
-            String lastRowData = worker.readChunkSafely(lastIndex + indexOffset, tableIndex + indexOffset, false, 1);
-            String lastContent = DataUtilities.parseRowContent(lastRowData);
-            int lastLast = DataUtilities.parseLastIndexRow(lastRowData);
-
-            String newMeta = DataUtilities.rowBuilder(lastLast, nextIndex, lastContent);
-
             logger.info("Updating metadata for previous row in the chain, setting nextIndex to " + nextIndex);
 
-            worker.deleteChunkCompletely(lastIndex + indexOffset, tableIndex + indexOffset, false, 1);
-            worker.writeToChunk(newMeta, lastIndex + indexOffset, tableIndex + indexOffset, false, 1);
+            setRowNextIndex(tableIndex, lastIndex, nextIndex);
         }
 
         // if target table has a nextIndex, update nextIndex's last to be target's last
         if (nextIndex != 0) {
-            String nextMeta = worker.readChunkSafely(nextIndex + indexOffset, tableIndex + indexOffset, false, 1);
-            String nextContent = DataUtilities.parseRowContent(nextMeta);
-            int nextNext = DataUtilities.parseNextIndexRow(nextMeta);
-
             logger.info("Updating metadata for next row in the chain, setting lastIndex to " + lastIndex);
 
-            String newMeta = DataUtilities.rowBuilder(lastIndex, nextNext, nextContent);
-
-            worker.deleteChunkCompletely(nextIndex + indexOffset, tableIndex + indexOffset, false, 1);
-            worker.writeToChunk(newMeta, nextIndex + indexOffset, tableIndex + indexOffset, false, 1);
+            setRowLastIndex(tableIndex, nextIndex, lastIndex);
         }
-        // delete target
-        worker.deleteChunkCompletely(rowIndex + indexOffset, tableIndex + indexOffset, false, 1);
+        // delete target and any overflow pages it references
+        overflow.free(tableIndex, DataUtilities.parseRowContent(rowData));
+        deleteRowData(tableIndex, rowIndex);
 
         // Add the deleted row chunk to free chunks for recycling (if recyclable)
         if (isRecyclable) {
@@ -914,6 +1136,8 @@ public class TableManager {
     // ==================== PROTECT methods ====================
 
     public MethodResponse protectTable(String tableTitle, String protection) {
+        versions.tableChanged(tableTitle);
+
         if (tableTitle.isEmpty()) {
             return new MethodResponse(400, "Bad Request: Table title is empty!", null, true);
         }
@@ -953,6 +1177,8 @@ public class TableManager {
     }
 
     public MethodResponse removeProtections(String tableTitle) {
+        versions.tableChanged(tableTitle);
+
         if (tableTitle.isEmpty()) {
             return new MethodResponse(400, "Bad Request: Table title is empty!", null, true);
         }
@@ -967,11 +1193,7 @@ public class TableManager {
         if (DataUtilities.isValidTableMetadata(tableMetadata)) {
             // table metadata is valid, construct and overwrite current data.
 
-            int last = DataUtilities.parseLastIndexTable(tableMetadata);
-            int next = DataUtilities.parseNextIndexTable(tableMetadata);
-            String title = DataUtilities.parseTitle(tableMetadata);
-
-            String newMetadata = DataUtilities.tableMetadataBuilder(title, last, next);
+            String newMetadata = DataUtilities.removeTableField(tableMetadata, DataUtilities.TABLE_PROTECTION_PREFIX);
 
             worker.deleteChunkCompletely(0, tableIndex + indexOffset, false, 1);
             worker.writeToChunk(newMetadata, 0, tableIndex + indexOffset, false, 1);
@@ -0,0 +1,248 @@
+package com.decacagle.data;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.decacagle.data.DataUtilities.*;
+
+/**
+ * The original storage format: each character is written as its hex digits, one wool block per digit,
+ * filling the region x first, then z towards negative, then y. The first non-wool block ends the content.
+ * Blocks are set without physics, so a write doesn't wake up neighbours or cause block updates around the data.
+ */
+public class WoolPageStore implements PageStore {
+
+    private World world;
+    private boolean applyPhysics = false;
+
+    public WoolPageStore(World world) {
+        this.world = world;
+    }
+
+    /**
+     * Whether block changes apply physics like a player placing them would. Only the storage benchmark turns this on,
+     * to compare against the old write path.
+     */
+    public void setApplyPhysics(boolean applyPhysics) {
+        this.applyPhysics = applyPhysics;
+    }
+
+    public String read(Region region) {
+        return new String(readBytes(region), StandardCharsets.ISO_8859_1);
+    }
+
+    public String readPrefix(Region region, int charCount) {
+        byte[] content = new byte[Math.min(charCount, region.capacity() / 2)];
+        int length = decode(chunkOf(region), region, 0, content, content.length);
+        return new String(content, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads the region's content as bytes, two blocks each, without going through hex strings
+     */
+    public byte[] readBytes(Region region) {
+        byte[] content = new byte[region.capacity() / 2];
+        int length = decode(chunkOf(region), region, 0, content, content.length);
+        return length == content.length ? content : Arrays.copyOf(content, length);
+    }
+
+    public int readBytes(Region region, byte[] buffer) {
+        return decode(chunkOf(region), region, 0, buffer, region.capacity() / 2);
+    }
+
+    /**
+     * Only decodes the blocks holding the requested bytes: byte n is the pair of blocks at offset 2n in the write order
+     */
+    public int readBytes(Region region, int byteOffset, byte[] buffer, int length) {
+        return decode(chunkOf(region), region, byteOffset, buffer, Math.max(0, Math.min(length, region.capacity() / 2 - byteOffset)));
+    }
+
+    /**
+     * Content is a run of wool blocks from the start of the region, so its end can be found with a binary search,
+     * looking at a couple of blocks per step instead of decoding all of them
+     */
+    public int byteLength(Region region) {
+        Chunk chunk = chunkOf(region);
+        int low = 0;
+        int high = region.capacity() / 2;
+
+        // The content is at least low and at most high bytes long
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+
+            if (isWoolBlock(blockAt(chunk, region, middle * 2 - 1).getType())) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return low;
+    }
+
+    public void write(String body, Region region) {
+        writeHex(body, region, 0);
+    }
+
+    public void writeAt(String text, Region region, int charOffset) {
+        writeHex(text, region, charOffset * 2);
+    }
+
+    /**
+     * Writes each byte as two blocks, high digit first, so bytes below 0x10 keep their leading zero
+     */
+    public void writeBytes(ByteBuffer body, Region region) {
+        Chunk chunk = chunkOf(region);
+        int blockOffset = 0;
+
+        while (body.hasRemaining()) {
+            int b = body.get() & 0xFF;
+            blockAt(chunk, region, blockOffset++).setType(nibbleToBlock(b >>> 4), applyPhysics);
+            blockAt(chunk, region, blockOffset++).setType(nibbleToBlock(b & 0xF), applyPhysics);
+        }
+    }
+
+    /**
+     * Only sets the blocks whose hex digit differs from what is there, then clears the rest of the old content,
+     * so a small change to a large row costs about as many blocks as it changes
+     */
+    public void replace(String body, Region region) {
+        Chunk chunk = chunkOf(region);
+        int blockOffset = 0;
+
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+
+            for (int shift = (hexLength(c) - 1) * 4; shift >= 0; shift -= 4) {
+                Block block = blockAt(chunk, region, blockOffset);
+                Material target = nibbleToBlock((c >>> shift) & 0xF);
+
+                if (block.getType() != target) {
+                    block.setType(target, applyPhysics);
+                }
+
+                blockOffset++;
+            }
+        }
+
+        // The old content carries on up to its own end marker, the first non-wool block
+        for (; blockOffset < region.capacity(); blockOffset++) {
+            Block block = blockAt(chunk, region, blockOffset);
+
+            if (!isWoolBlock(block.getType())) {
+                break;
+            }
+
+            block.setType(block.getY() == -64 ? Material.GRASS_BLOCK : Material.AIR, applyPhysics);
+        }
+    }
+
+    private void writeHex(String text, Region region, int blockOffset) {
+        // Look the chunk up once; the write order goes through it one section at a time from the bottom up
+        Chunk chunk = chunkOf(region);
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            // The same digits as asciiToHex(c), most significant first, straight from the lookup table
+            for (int shift = (hexLength(c) - 1) * 4; shift >= 0; shift -= 4) {
+                blockAt(chunk, region, blockOffset).setType(nibbleToBlock((c >>> shift) & 0xF), applyPhysics);
+                blockOffset++;
+            }
+        }
+    }
+
+    /**
+     * Decodes at most count pairs of blocks into content, starting with byte byteOffset and stopping at the first
+     * non-wool block
+     * @return how many bytes were decoded
+     */
+    private int decode(Chunk chunk, Region region, int byteOffset, byte[] content, int count) {
+        int length = 0;
+
+        for (int blockOffset = byteOffset * 2; length < count; blockOffset += 2) {
+            int high = blockToNibble(blockAt(chunk, region, blockOffset).getType());
+            int low = blockToNibble(blockAt(chunk, region, blockOffset + 1).getType());
+
+            if (high < 0 || low < 0) {
+                // Found invalid Material, region is out of data, stop scanning
+                break;
+            }
+
+            content[length++] = (byte) ((high << 4) | low);
+        }
+
+        return length;
+    }
+
+    public void delete(Region region) {
+        Chunk chunk = chunkOf(region);
+        int bottomY = -64 + region.baseLayer();
+
+        // Clean every block in the region, section by section
+        for (int y = bottomY; y < bottomY + region.layers(); y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    Block current = chunk.getBlock(x, y, z);
+
+                    if (isWoolBlock(current.getType())) {
+                        if (y == -64) {
+                            current.setType(Material.GRASS_BLOCK, applyPhysics);
+                        } else {
+                            current.setType(Material.AIR, applyPhysics);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the hex digits of a region's content from a snapshot of its chunk, which is safe off the main thread
+     */
+    public static String readHex(ChunkSnapshot snapshot, Region region) {
+        StringBuilder hexBuilder = new StringBuilder();
+
+        for (int blockOffset = 0; blockOffset < region.capacity(); blockOffset++) {
+            int x = blockOffset % 16;
+            int z = 15 - ((blockOffset / 16) % 16);
+            int y = -64 + region.baseLayer() + (blockOffset / 256);
+
+            char presentChar = getCorrespondingChar(snapshot.getBlockType(x, y, z));
+
+            if (presentChar == 'n') {
+                break;
+            }
+
+            hexBuilder.append(presentChar);
+        }
+
+        return hexBuilder.toString();
+    }
+
+    public boolean isFull(Region region) {
+        return isWoolBlock(blockAt(chunkOf(region), region, region.capacity() - 1).getType());
+    }
+
+    /**
+     * The block at the given position in the region's write order: x first, then z towards negative, then y
+     */
+    private Block blockAt(Chunk chunk, Region region, int blockOffset) {
+        int x = blockOffset % 16;
+        int z = 15 - ((blockOffset / 16) % 16);
+        int y = -64 + region.baseLayer() + (blockOffset / 256);
+        return chunk.getBlock(x, y, z);
+    }
+
+    private Chunk chunkOf(Region region) {
+        return world.getChunkAt(region.xIndex(), region.zIndex() - 1);
+    }
+
+}
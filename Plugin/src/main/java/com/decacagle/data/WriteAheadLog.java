@@ -0,0 +1,394 @@
+package com.decacagle.data;
+
+import com.decacagle.DecaDB;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.WorldSaveEvent;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only redo log for chunk mutations, stored in the plugin data folder.
+ * Records are buffered in memory as they happen and written + fsynced once per tick (group commit).
+ * On startup, every committed transaction since the last checkpoint is replayed in order.
+ * <p>
+ * Record layout: {payloadLength}{crc32}{op}{txId}{x}{z}{infinite}{direction}{bodyLength}{body}{baseLayer}{layers}
+ */
+public class WriteAheadLog implements Listener {
+
+    public static final byte OP_WRITE = 1;
+    public static final byte OP_DELETE = 2;
+    public static final byte OP_DELETE_COMPLETELY = 3;
+    public static final byte OP_COMMIT = 4;
+    // Overwrites part of a chunk in place; the record's direction field holds the character offset
+    public static final byte OP_WRITE_AT = 5;
+    // Writes bytes, two blocks each; the body holds one character per byte
+    public static final byte OP_WRITE_BYTES = 6;
+
+    private Logger logger;
+    private World world;
+    private DecaDB plugin;
+
+    private File logFile;
+    private File oldLogFile;
+    private FileChannel channel;
+
+    private final Object bufferLock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private List<Acknowledgement> pendingCallbacks = new ArrayList<>();
+
+    private long nextTransactionId = 1;
+    private long validLogLength = -1;
+    private BukkitTask syncTask;
+    private Runnable beforeCheckpoint;
+
+    public WriteAheadLog(Logger logger, World world, DecaDB plugin) {
+        this.logger = logger;
+        this.world = world;
+        this.plugin = plugin;
+
+        File folder = plugin.getDataFolder();
+        folder.mkdirs();
+
+        this.logFile = new File(folder, "wal.log");
+        this.oldLogFile = new File(folder, "wal.old");
+    }
+
+    /**
+     * Opens the log for appending and starts the per-tick group commit task
+     */
+    public void open() throws IOException {
+        channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        // Drop a torn tail left by a crash so new records aren't appended behind it
+        if (validLogLength >= 0 && channel.size() > validLogLength) {
+            channel.truncate(validLogLength);
+        }
+
+        syncTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::sync, 1L, 1L);
+        Bukkit.getPluginManager().registerEvents(this, plugin);
+    }
+
+    /**
+     * Sets work that has to reach the world before a save makes the current log obsolete,
+     * such as writes still sitting in the write-behind buffer
+     */
+    public void setBeforeCheckpoint(Runnable beforeCheckpoint) {
+        this.beforeCheckpoint = beforeCheckpoint;
+    }
+
+    public synchronized long nextTransactionId() {
+        return nextTransactionId++;
+    }
+
+    public void append(byte op, long txId, int x, int z, int baseLayer, int layers, boolean infinite, int direction, String body) {
+        byte[] record = encodeRecord(op, txId, x, z, baseLayer, layers, infinite, direction, body);
+
+        synchronized (bufferLock) {
+            pending.write(record, 0, record.length);
+        }
+    }
+
+    /**
+     * Appends the commit record for txId. The callbacks run once that record has been fsynced, or fail if it
+     * couldn't be.
+     */
+    public void commit(long txId, List<Acknowledgement> callbacks) {
+        byte[] record = encodeRecord(OP_COMMIT, txId, 0, 0, 0, 0, false, 0, "");
+
+        synchronized (bufferLock) {
+            pending.write(record, 0, record.length);
+            pendingCallbacks.addAll(callbacks);
+        }
+    }
+
+    /**
+     * Writes everything buffered since the last call and forces it to disk, then releases waiting acknowledgements.
+     * If that fails, none of them are acknowledged: each is told its transaction isn't durable instead.
+     */
+    public synchronized void sync() {
+        byte[] batch;
+        List<Acknowledgement> callbacks;
+
+        synchronized (bufferLock) {
+            if (pending.size() == 0) {
+                return;
+            }
+
+            batch = pending.toByteArray();
+            callbacks = pendingCallbacks;
+
+            pending.reset();
+            pendingCallbacks = new ArrayList<>();
+        }
+
+        boolean durable;
+        long validLength = -1;
+
+        try {
+            validLength = channel.size();
+
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            durable = true;
+        } catch (IOException e) {
+            logger.severe("Failed to write to the write-ahead log, answering " + callbacks.size() + " request(s) with errors: " + e.getMessage());
+            durable = false;
+            dropTornBatch(validLength);
+        }
+
+        for (Acknowledgement callback : callbacks) {
+            try {
+                if (durable) {
+                    callback.onCommit().run();
+                } else {
+                    callback.onFailure().run();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Cuts off whatever part of a failed batch reached the file, so records appended later aren't stuck behind a
+     * torn one that replay would stop at
+     */
+    private void dropTornBatch(long validLength) {
+        if (validLength < 0) {
+            return;
+        }
+
+        try {
+            if (channel.size() > validLength) {
+                channel.truncate(validLength);
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to cut a torn batch off the write-ahead log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Called when the data world starts saving. The current log becomes wal.old and the previous wal.old,
+     * whose changes are covered by the save that already finished, is discarded.
+     */
+    @EventHandler
+    public void onWorldSave(WorldSaveEvent event) {
+        if (event.getWorld() == world) {
+            if (beforeCheckpoint != null) {
+                beforeCheckpoint.run();
+            }
+            checkpoint();
+        }
+    }
+
+    public synchronized void checkpoint() {
+        sync();
+
+        try {
+            channel.close();
+            Files.move(logFile.toPath(), oldLogFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            logger.severe("Failed to checkpoint the write-ahead log: " + e.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        if (syncTask != null) {
+            syncTask.cancel();
+        }
+
+        sync();
+
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.warning("Failed to close the write-ahead log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads wal.old then wal.log and returns the operations of every committed transaction, in log order.
+     * Reading stops at the first torn or corrupt record, which can only be the unsynced tail of a crash.
+     * Must be called before open().
+     */
+    public List<LoggedOperation> readCommittedOperations() {
+        List<LoggedOperation> operations = new ArrayList<>();
+        Set<Long> committed = new HashSet<>();
+
+        readLogFile(oldLogFile, operations, committed);
+        validLogLength = readLogFile(logFile, operations, committed);
+
+        List<LoggedOperation> result = new ArrayList<>();
+        for (LoggedOperation operation : operations) {
+            if (committed.contains(operation.txId)) {
+                result.add(operation);
+            }
+            nextTransactionId = Math.max(nextTransactionId, operation.txId + 1);
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads the records of one log file and returns the length of its valid prefix
+     */
+    private long readLogFile(File file, List<LoggedOperation> operations, Set<Long> committed) {
+        long validLength = 0;
+
+        if (!file.exists()) {
+            return validLength;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                long expectedCrc = in.readInt() & 0xFFFFFFFFL;
+
+                if (length <= 0 || length > 64 * 1024 * 1024) {
+                    logger.warning("Stopped reading " + file.getName() + " at an invalid record length");
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != expectedCrc) {
+                    logger.warning("Stopped reading " + file.getName() + " at a corrupt record");
+                    break;
+                }
+
+                LoggedOperation operation = decodePayload(payload);
+
+                if (operation.op == OP_COMMIT) {
+                    committed.add(operation.txId);
+                } else {
+                    operations.add(operation);
+                }
+
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            logger.warning("Write-ahead log " + file.getName() + " ends with a torn record, ignoring it");
+        } catch (IOException e) {
+            logger.severe("Failed to read write-ahead log " + file.getName() + ": " + e.getMessage());
+        }
+
+        return validLength;
+    }
+
+    private byte[] encodeRecord(byte op, long txId, int x, int z, int baseLayer, int layers, boolean infinite, int direction, String body) {
+        try {
+            byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(34 + bodyBytes.length);
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            payload.writeByte(op);
+            payload.writeLong(txId);
+            payload.writeInt(x);
+            payload.writeInt(z);
+            payload.writeBoolean(infinite);
+            payload.writeInt(direction);
+            payload.writeInt(bodyBytes.length);
+            payload.write(bodyBytes);
+            payload.writeInt(baseLayer);
+            payload.writeInt(layers);
+
+            byte[] payloadArray = payloadBytes.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(payloadArray);
+
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(8 + payloadArray.length);
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            record.writeInt(payloadArray.length);
+            record.writeInt((int) crc.getValue());
+            record.write(payloadArray);
+
+            return recordBytes.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private LoggedOperation decodePayload(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        byte op = in.readByte();
+        long txId = in.readLong();
+        int x = in.readInt();
+        int z = in.readInt();
+        boolean infinite = in.readBoolean();
+        int direction = in.readInt();
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+
+        // Records written before slots existed always covered the whole chunk
+        int baseLayer = 0;
+        int layers = 384;
+        if (in.available() >= 8) {
+            baseLayer = in.readInt();
+            layers = in.readInt();
+        }
+
+        return new LoggedOperation(op, txId, x, z, baseLayer, layers, infinite, direction, new String(body, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * What to do once a transaction's commit record is on disk, and what to do instead if it couldn't be written
+     */
+    public record Acknowledgement(Runnable onCommit, Runnable onFailure) {
+    }
+
+    public static class LoggedOperation {
+
+        public final byte op;
+        public final long txId;
+        public final int x, z;
+        public final int baseLayer, layers;
+        public final boolean infinite;
+        public final int direction;
+        public final String body;
+
+        public LoggedOperation(byte op, long txId, int x, int z, int baseLayer, int layers, boolean infinite, int direction, String body) {
+            this.op = op;
+            this.txId = txId;
+            this.x = x;
+            this.z = z;
+            this.baseLayer = baseLayer;
+            this.layers = layers;
+            this.infinite = infinite;
+            this.direction = direction;
+            this.body = body;
+        }
+
+    }
+
+}
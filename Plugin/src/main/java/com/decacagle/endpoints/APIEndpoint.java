@@ -2,6 +2,7 @@ package com.decacagle.endpoints;
 
 import com.decacagle.DecaDB;
 import com.decacagle.data.DataWorker;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import org.bukkit.Bukkit;
@@ -9,10 +10,23 @@ import org.bukkit.World;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 public abstract class APIEndpoint implements HttpHandler {
 
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
     public Logger logger;
     public World world;
     public DecaDB plugin;
@@ -43,10 +57,235 @@ public abstract class APIEndpoint implements HttpHandler {
     public void addCorsHeaders(HttpExchange exchange) {
         exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
         exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, Authorization");
+        exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, Authorization, Range, If-None-Match, If-Modified-Since");
+        exchange.getResponseHeaders().add("Access-Control-Expose-Headers", "ETag, Last-Modified, Accept-Ranges, Content-Range");
+    }
+
+    /**
+     * Adds a response's validators, so the client can ask later whether what it has is still current.
+     * Cache-Control: no-cache lets browsers keep the response but has them ask before every use.
+     * @param lastModified when the content last changed, in epoch milliseconds
+     */
+    public void addValidators(HttpExchange exchange, String etag, long lastModified) {
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
     }
 
+    /**
+     * Answers with 304 Not Modified and no body if the client already has the content with this ETag, or if it
+     * hasn't changed since the If-Modified-Since date of a GET request. If-None-Match wins when both are sent.
+     * The response is sent straight away, so call this before reading anything the client already has.
+     * @param otherEtags the ETags of the content's other current representations, such as its gzipped bytes
+     * @return whether the request was answered
+     */
+    public boolean respondIfNotModified(HttpExchange exchange, String etag, long lastModified, String... otherEtags) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        boolean notModified;
+
+        if (ifNoneMatch != null) {
+            notModified = false;
+
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+
+                // Weak comparison, as If-None-Match calls for
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    notModified = true;
+                    break;
+                }
+
+                if (Arrays.asList(otherEtags).contains(candidate)) {
+                    notModified = true;
+                    etag = candidate;
+                    break;
+                }
+            }
+        } else if (ifModifiedSince != null && exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                notModified = lastModified <= since;
+            } catch (DateTimeParseException e) {
+                notModified = false;
+            }
+        } else {
+            notModified = false;
+        }
+
+        if (!notModified) {
+            return false;
+        }
+
+        addValidators(exchange, etag, lastModified);
+
+        try {
+            exchange.sendResponseHeaders(304, -1);
+        } catch (IOException e) {
+            logger.info("Failed to send 304 Not Modified: " + e.getMessage());
+        }
+        exchange.close();
+
+        return true;
+    }
+
+    /**
+     * Whether the request's Authorization header is the admin key set in the config. Always false while no key
+     * is set.
+     */
+    public boolean isAdmin(HttpExchange exchange) {
+        String adminKey = plugin.getConfig().getString("admin.key", "");
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+
+        if (adminKey == null || adminKey.isEmpty() || authorization == null) {
+            return false;
+        }
+
+        // Compares every byte, so response times don't give away how much of a guess was right
+        return MessageDigest.isEqual(adminKey.getBytes(StandardCharsets.UTF_8), authorization.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Answers 401 unless the request carries the admin key
+     * @return whether it does
+     */
+    public boolean requireAdmin(HttpExchange exchange, String action) {
+        if (isAdmin(exchange)) {
+            return true;
+        }
+
+        respond(exchange, 401, "Access Denied: " + action + " needs the admin key");
+        return false;
+    }
+
+    /**
+     * The largest request body an upload may have, set by files.max-upload-bytes and never more than a file's
+     * chunks can hold
+     */
+    public long maxUploadBytes() {
+        long spanLimit = (long) DataWorker.MAX_SPANNING_CHUNKS * DataWorker.BYTES_PER_CHUNK;
+        return Math.min(plugin.getConfig().getLong("files.max-upload-bytes", 16L * 1024 * 1024), spanLimit);
+    }
+
+    /**
+     * Answers 413 if the request's Content-Length is over maxUploadBytes, before any of the body is read
+     * @return whether it was refused
+     */
+    public boolean refuseOversizedUpload(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+
+        if (contentLength == null) {
+            return false;
+        }
+
+        try {
+            if (Long.parseLong(contentLength.trim()) <= maxUploadBytes()) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            // The server rejects a malformed length itself; a body without one is capped as it is read
+            return false;
+        }
+
+        respond(exchange, 413, "Payload Too Large: Uploads can be at most " + maxUploadBytes() + " bytes");
+        return true;
+    }
+
+    /**
+     * Sends the response once the mutations made while handling it are durable in the write-ahead log
+     */
     public void respond(HttpExchange exchange, int status, String message) {
+        worker.afterCommit(() -> sendResponse(exchange, status, message), () -> sendNotDurable(exchange));
+    }
+
+    public void respondWithBytes(HttpExchange exchange, int status, byte[] response) {
+        worker.afterCommit(() -> sendBytes(exchange, status, response), () -> sendNotDurable(exchange));
+    }
+
+    /**
+     * Like respond, but compresses the message with gzip or deflate if it is at least minBytes long and the client
+     * accepts either. The message is compressed on another thread as it is sent, with chunked transfer encoding,
+     * so neither the main thread nor a buffer the size of the compressed message is needed. 0 never compresses.
+     */
+    public void respondCompressible(HttpExchange exchange, int status, String message, int minBytes) {
+        // A UTF-8 message is never shorter in bytes than in characters
+        if (minBytes <= 0 || message.length() < minBytes) {
+            respond(exchange, status, message);
+            return;
+        }
+
+        // Whether it is compressed depends on the request's Accept-Encoding, even when it isn't
+        exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+
+        String coding = acceptsEncoding(exchange, "gzip") ? "gzip" : acceptsEncoding(exchange, "deflate") ? "deflate" : null;
+
+        if (coding == null) {
+            respond(exchange, status, message);
+            return;
+        }
+
+        worker.afterCommit(() -> Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> sendCompressed(exchange, status, message, coding)),
+                () -> sendNotDurable(exchange));
+    }
+
+    /**
+     * The entity tag of the content with this tag once compressed with the given coding, which as a different
+     * sequence of bytes needs a strong tag of its own
+     */
+    public static String encodedEtag(String etag, String coding) {
+        return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+    }
+
+    private void sendCompressed(HttpExchange exchange, int status, String message, String coding) {
+        Headers headers = exchange.getResponseHeaders();
+        String etag = headers.getFirst("ETag");
+
+        headers.set("Content-Encoding", coding);
+        if (etag != null) {
+            headers.set("ETag", encodedEtag(etag, coding));
+        }
+
+        try {
+            exchange.sendResponseHeaders(status, 0);
+
+            OutputStream body = exchange.getResponseBody();
+            OutputStream compressed = coding.equals("gzip") ? new GZIPOutputStream(body, 8192) : new DeflaterOutputStream(body);
+
+            try (Writer writer = new OutputStreamWriter(compressed, StandardCharsets.UTF_8)) {
+                writer.write(message);
+            }
+        } catch (IOException e) {
+            logger.info("Stopped sending a " + coding + " response: " + e.getMessage());
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answers a request whose changes couldn't be written to the write-ahead log, in place of its response
+     */
+    private void sendNotDurable(HttpExchange exchange) {
+        // Set for the response that was going to be sent, and don't describe this one
+        removeRepresentationHeaders(exchange);
+
+        sendResponse(exchange, 500, "Internal Server Error: Failed to write the change to the write-ahead log, it may be lost if the server stops");
+    }
+
+    /**
+     * Removes the headers describing a representation of the content, for when an error message goes out instead
+     * of the response they were set for
+     */
+    protected void removeRepresentationHeaders(HttpExchange exchange) {
+        Headers headers = exchange.getResponseHeaders();
+        for (String header : List.of("Content-Type", "Content-Encoding", "ETag", "Last-Modified", "Cache-Control", "Vary")) {
+            headers.remove(header);
+        }
+    }
+
+    protected void sendResponse(HttpExchange exchange, int status, String message) {
         try {
 
             byte[] response = message.getBytes(StandardCharsets.UTF_8);
@@ -61,7 +300,7 @@ public abstract class APIEndpoint implements HttpHandler {
         }
     }
 
-    public void respondWithBytes(HttpExchange exchange, int status, byte[] response) {
+    private void sendBytes(HttpExchange exchange, int status, byte[] response) {
         try {
 
             exchange.sendResponseHeaders(status, response.length);
@@ -74,6 +313,44 @@ public abstract class APIEndpoint implements HttpHandler {
         }
     }
 
+    /**
+     * Whether the request's Accept-Encoding header allows responses in this content coding, such as gzip
+     */
+    public boolean acceptsEncoding(HttpExchange exchange, String coding) {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        Boolean wildcard = null;
+
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            String name = parts[0].trim();
+
+            // q=0 means the client refuses it
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+
+                if (parameter.startsWith("q=") && parameter.substring(2).matches("0(\\.0*)?")) {
+                    accepted = false;
+                }
+            }
+
+            if (name.equalsIgnoreCase(coding)) {
+                return accepted;
+            }
+
+            if (name.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+
+        // * only covers codings that aren't named
+        return wildcard != null && wildcard;
+    }
+
     public void runSynchronously(Runnable runnable) {
         try {
             Bukkit.getScheduler().runTask(plugin, runnable);
@@ -108,4 +385,21 @@ public abstract class APIEndpoint implements HttpHandler {
 
     }
 
+    /**
+     * Reads the request body as UTF-8 text, stopping as soon as it goes over limit bytes, for bodies sent without
+     * a Content-Length
+     * @return the body, or null if it is larger than limit
+     */
+    public String parseExchangeBody(HttpExchange exchange, long limit) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            byte[] bytes = body.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, limit + 1));
+
+            if (bytes.length > limit) {
+                return null;
+            }
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
 }
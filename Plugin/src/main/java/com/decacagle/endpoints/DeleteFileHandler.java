@@ -3,9 +3,10 @@ package com.decacagle.endpoints;
 import com.decacagle.DecaDB;
 import com.decacagle.data.DataUtilities;
 import com.decacagle.data.DataWorker;
+import com.decacagle.data.FileCache;
+import com.decacagle.data.FileRoutes;
 import com.decacagle.data.TableManager;
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpServer;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.Block;
@@ -14,15 +15,18 @@ import java.util.logging.Logger;
 
 public class DeleteFileHandler extends APIEndpoint {
 
-    private HttpServer server;
     private TableManager tableManager;
+    private FileCache fileCache;
+    private FileRoutes fileRoutes;
     private int indexOffset = -1;
 
-    public DeleteFileHandler(HttpServer server, Logger logger, World world, DecaDB plugin, DataWorker worker) {
+    public DeleteFileHandler(Logger logger, World world, DecaDB plugin, DataWorker worker, TableManager tableManager, FileCache fileCache,
+                             FileRoutes fileRoutes) {
         super(logger, world, plugin, worker);
 
-        this.server = server;
-        this.tableManager = new TableManager(logger, world, worker);
+        this.tableManager = tableManager;
+        this.fileCache = fileCache;
+        this.fileRoutes = fileRoutes;
     }
 
     public void handle(HttpExchange exchange) {
@@ -48,7 +52,7 @@ public class DeleteFileHandler extends APIEndpoint {
                     return;
                 }
 
-                runSynchronously(() -> deleteFile(server, exchange, index));
+                runSynchronously(() -> worker.runInTransaction(() -> deleteFile(exchange, index)));
             } catch (NumberFormatException e) {
                 respond(exchange, 400, "Bad Request: Invalid parameter value");
             }
@@ -105,9 +109,9 @@ public class DeleteFileHandler extends APIEndpoint {
                     Block block = world.getBlockAt(chunkX, y, chunkZ);
                     if (DataUtilities.isWoolBlock(block.getType())) {
                         if (y == -64) {
-                            block.setType(Material.GRASS_BLOCK);
+                            block.setType(Material.GRASS_BLOCK, false);
                         } else {
-                            block.setType(Material.AIR);
+                            block.setType(Material.AIR, false);
                         }
                     }
                 }
@@ -130,11 +134,10 @@ public class DeleteFileHandler extends APIEndpoint {
     /**
      * Deletes the file stored at the given index and responds to the HTTP request.
      * Modifies metadata of the leftmost and rightmost files in the tree to update their last and next index values
-     * @param server The HttpServer object passed from Handler constructor, used to remove link to the file after deletion
      * @param exchange The HttpExchange object passed from the initial HttpHandler handle method
      * @param index    The index of the file to be deleted
      */
-    public void deleteFile(HttpServer server, HttpExchange exchange, int index) {
+    public void deleteFile(HttpExchange exchange, int index) {
         if (!validateFileExists(index)) {
             respond(exchange, 400, "Bad Request: File doesn't exist or has corrupted metadata");
             return;
@@ -151,14 +154,11 @@ public class DeleteFileHandler extends APIEndpoint {
         // Update the linked list structure
         updateLinkedListForDeletion(lastIndex, nextIndex, index);
 
-        // Remove the HTTP server context for this file
-        String contextPath = DataUtilities.contextNameBuilder(targetTitle);
-        try {
-            server.removeContext(contextPath);
-            logger.info("Removed HTTP context: " + contextPath);
-        } catch (Exception e) {
-            logger.warning("Failed to remove HTTP context " + contextPath + ": " + e.getMessage());
-        }
+        // Stop serving the file, unless a newer upload has taken its path over
+        fileRoutes.remove(targetTitle, index);
+        logger.info("Removed route: " + DataUtilities.contextNameBuilder(targetTitle));
+
+        fileCache.invalidate(index);
 
         // Completely clean all chunks used by this file
         cleanFileChunksCompletely(index);
@@ -190,11 +190,9 @@ public class DeleteFileHandler extends APIEndpoint {
             String lastMeta = worker.readChunkSafely(0, -lastIndex + indexOffset, false, 1);
 
             if (DataUtilities.isValidFileMetadata(lastMeta)) {
-                String lastTitle = DataUtilities.parseTitle(lastMeta);
-                String lastMime = DataUtilities.parseFileMime(lastMeta);
                 int lastLast = DataUtilities.parseLastIndexTable(lastMeta);
 
-                String newMeta = DataUtilities.fileMetadataBuilder(lastTitle, lastMime, lastLast, nextIndex);
+                String newMeta = DataUtilities.relinkFileMetadata(lastMeta, lastLast, nextIndex);
 
                 logger.info("Updating metadata for previous file in the chain, setting nextIndex to " + nextIndex);
 
@@ -208,13 +206,11 @@ public class DeleteFileHandler extends APIEndpoint {
             String nextMeta = worker.readChunkSafely(0, -nextIndex + indexOffset, false, 1);
 
             if (DataUtilities.isValidFileMetadata(nextMeta)) {
-                String nextTitle = DataUtilities.parseTitle(nextMeta);
-                String nextMime = DataUtilities.parseFileMime(nextMeta);
                 int nextNext = DataUtilities.parseNextIndexTable(nextMeta);
 
                 logger.info("Updating metadata for next file in the chain, setting lastIndex to " + lastIndex);
 
-                String newMeta = DataUtilities.fileMetadataBuilder(nextTitle, nextMime, lastIndex, nextNext);
+                String newMeta = DataUtilities.relinkFileMetadata(nextMeta, lastIndex, nextNext);
 
                 worker.deleteChunkCompletely(0, -nextIndex + indexOffset, false, 1);
                 worker.writeToChunk(newMeta, 0, -nextIndex + indexOffset, false, 1);
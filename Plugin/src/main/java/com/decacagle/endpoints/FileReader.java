@@ -1,29 +1,68 @@
 package com.decacagle.endpoints;
 
 import com.decacagle.DecaDB;
+import com.decacagle.data.ContentVersions;
 import com.decacagle.data.DataUtilities;
 import com.decacagle.data.DataWorker;
+import com.decacagle.data.FileCache;
+import com.decacagle.data.FileMirror;
+import com.decacagle.data.FileRoutes;
 import com.sun.net.httpserver.HttpExchange;
+import org.bukkit.Bukkit;
 import org.bukkit.World;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * Serves every stored file, at /{title} and /files/{title}. The file is looked up by path in FileRoutes, so one
+ * FileReader serves them all.
+ */
 public class FileReader extends APIEndpoint {
 
-    private int fileIndex;
+    // How many decoded chunks a download may have waiting to be sent
+    private static final int STREAM_BUFFERS = 4;
+
+    // Queued after a download's last chunk
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    // Queued instead of END when the rest of a download can't be read, so its sender gives up rather than waiting
+    private static final ByteBuffer FAILED = ByteBuffer.allocate(0);
+
+    // How long a download's sender waits for the next chunk before giving up, in case the main thread stops reading
+    private static final long STREAM_WAIT_SECONDS = 30;
 
     private int indexOffset = -1;
 
-    public FileReader(Logger logger, World world, DecaDB plugin, DataWorker worker, int fileIndex) {
-        super(logger, world, plugin, worker);
+    private long tickBudgetNanos;
 
-        // TODO: This could just be created within APIEndpoint
-        this.worker = new DataWorker(logger, world, plugin);
+    private FileCache fileCache;
+    private FileMirror fileMirror;
+    private ContentVersions versions;
+    private FileRoutes fileRoutes;
 
-        this.fileIndex = fileIndex;
+    public FileReader(Logger logger, World world, DecaDB plugin, DataWorker worker, FileCache fileCache, FileMirror fileMirror,
+                      ContentVersions versions, FileRoutes fileRoutes) {
+        super(logger, world, plugin, worker);
 
-        logger.info("FileReader created for index " + fileIndex);
+        this.fileCache = fileCache;
+        this.fileMirror = fileMirror;
+        this.versions = versions;
+        this.fileRoutes = fileRoutes;
+        this.tickBudgetNanos = plugin.getConfig().getLong("files.stream-tick-budget-ms", 5) * 1_000_000L;
 
     }
 
@@ -31,26 +70,681 @@ public class FileReader extends APIEndpoint {
         addCorsHeaders(exchange);
 
         if (!preflightCheck(exchange)) {
-            runSynchronously(() -> readAndServeFile(exchange));
+            int fileIndex = fileRoutes.lookup(exchange.getRequestURI().getRawPath());
+
+            if (fileIndex == 0) {
+                sendResponse(exchange, 404, "Not Found: No file at " + exchange.getRequestURI().getPath());
+                return;
+            }
+
+            // Noted before anything is read, so what is read can only be newer than the version it is tagged and cached with
+            ContentVersions.Version version = versions.file(fileIndex);
+
+            // Either representation of a gzipped file, as it is stored or decompressed, is still current
+            if (respondIfNotModified(exchange, version.etag("f" + fileIndex), version.modified(), version.etag("f" + fileIndex + "-gz"))) {
+                return;
+            }
+
+            FileCache.CachedFile cached = fileCache.get(fileIndex);
+
+            if (cached != null) {
+                // Nothing to read from the world, so neither the main thread nor the HTTP thread has to wait on it
+                Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> serveCached(exchange, fileIndex, cached, version));
+            } else {
+                runSynchronously(() -> readAndServeFile(exchange, fileIndex, version));
+            }
         }
 
     }
 
-    public void readAndServeFile(HttpExchange exchange) {
+    public void readAndServeFile(HttpExchange exchange, int fileIndex, ContentVersions.Version version) {
 
         String metadata = worker.readChunkSafely(0, -fileIndex + indexOffset, false, 1);
 
+        if (!DataUtilities.isValidFileMetadata(metadata)) {
+            respond(exchange, 404, "Not Found: No file at index " + fileIndex);
+            return;
+        }
+
         String fileMime = DataUtilities.parseFileMime(metadata);
+        boolean raw = DataUtilities.parseFileEncoding(metadata).equals(DataUtilities.FILE_ENCODING_RAW);
+        boolean compressed = DataUtilities.FILE_COMPRESSION_GZIP.equals(DataUtilities.parseFileCompression(metadata));
+        boolean asIs = addRepresentationHeaders(exchange, fileIndex, fileMime, compressed, version);
+
+        String hash = fileMirror.isEnabled() ? DataUtilities.parseFileHash(metadata) : null;
+        // Ranges are of the stored bytes, so a file being decompressed on its way out is always sent whole
+        String range = asIs ? exchange.getRequestHeaders().getFirst("Range") : null;
+        long fileSize = range != null || fileCache.isEnabled() || hash != null ? fileSize(fileIndex, metadata, raw) : -1;
+        long[] part = partToSend(exchange, range, fileSize);
+
+        if (part == null) {
+            // The message is plain text, not the gzipped file the headers describe
+            removeRepresentationHeaders(exchange);
+            respond(exchange, 416, "Range Not Satisfiable: File is " + fileSize + " bytes");
+            return;
+        }
+
+        if (hash != null && fileMirror.contains(hash, fileSize)) {
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> serveMirrored(exchange, fileIndex, hash, fileSize, part, version.count(), fileMime, compressed, !asIs));
+            return;
+        }
+
+        long knownSize = fileSize >= 0 ? fileSize : DataUtilities.parseFileSize(metadata);
+        Download download = new Download(exchange, fileIndex, raw, !asIs, part[0], part[1], knownSize);
+
+        if (part[1] < 0) {
+            logger.info("Serving " + DataUtilities.parseTitle(metadata) + " as " + fileMime + " from index " + fileIndex);
+        }
+
+        // What is kept has to be the file as stored, which a decompressing download never has in hand
+        if (part[1] < 0 && asIs) {
+            if (fileCache.fits(fileSize)) {
+                download.cacheAs(version.count(), fileMime, compressed, fileSize);
+            }
+
+            if (hash != null) {
+                download.mirrorAs(hash, fileSize);
+            }
+        }
+
+        download.start(part[1] < 0 ? 200 : 206);
+
+    }
+
+    /**
+     * Sends a cached file, or the part of it the request's Range header asks for. Runs off the main thread.
+     */
+    private void serveCached(HttpExchange exchange, int fileIndex, FileCache.CachedFile cached, ContentVersions.Version version) {
+        ByteBuffer body = cached.body();
+
+        if (!addRepresentationHeaders(exchange, fileIndex, cached.mime(), cached.compressed(), version)) {
+            sendInflated(exchange, fileIndex, new BufferInputStream(body));
+            return;
+        }
+
+        long[] part = partToSend(exchange, exchange.getRequestHeaders().getFirst("Range"), body.remaining());
+
+        if (part == null) {
+            removeRepresentationHeaders(exchange);
+            sendResponse(exchange, 416, "Range Not Satisfiable: File is " + body.remaining() + " bytes");
+            return;
+        }
+
+        sendBody(exchange, fileIndex, body, part);
+    }
+
+    /**
+     * Sends a file from its mirror on disk, or the part of it given by partToSend, decompressing it on the way out
+     * if inflate is set. A whole file small enough to cache is read into the cache first, so the next download
+     * doesn't need its metadata read either. Runs off the main thread.
+     */
+    private void serveMirrored(HttpExchange exchange, int fileIndex, String hash, long fileSize, long[] part, long version, String mime,
+                               boolean compressed, boolean inflate) {
+        FileChannel channel;
+
+        try {
+            channel = fileMirror.open(hash);
+        } catch (IOException e) {
+            sendResponse(exchange, 500, "Internal Server Error: Failed to open the mirror of file " + fileIndex + " -- " + e.getMessage());
+            return;
+        }
+
+        try (channel) {
+            if (part[1] < 0 && fileCache.fits(fileSize)) {
+                ByteBuffer body = ByteBuffer.allocateDirect((int) fileSize);
+
+                while (body.hasRemaining()) {
+                    if (channel.read(body) < 0) {
+                        throw new EOFException("Mirror is shorter than the file");
+                    }
+                }
+
+                fileCache.put(fileIndex, version, mime, compressed, body.flip());
+
+                if (inflate) {
+                    sendInflated(exchange, fileIndex, new BufferInputStream(body));
+                } else {
+                    sendBody(exchange, fileIndex, body, part);
+                }
+                return;
+            }
+
+            if (inflate) {
+                sendInflated(exchange, fileIndex, Channels.newInputStream(channel));
+                return;
+            }
+
+            long position = part[0];
+            long end = part[1] < 0 ? fileSize : part[1];
+
+            exchange.sendResponseHeaders(part[1] < 0 ? 200 : 206, end > position ? end - position : -1);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                WritableByteChannel target = Channels.newChannel(out);
+
+                while (position < end) {
+                    long sent = channel.transferTo(position, end - position, target);
+
+                    if (sent == 0) {
+                        throw new EOFException("Mirror is shorter than the file");
+                    }
+                    position += sent;
+                }
+            }
+        } catch (IOException e) {
+            logger.info("Stopped serving file " + fileIndex + " from its mirror: " + e.getMessage());
+            exchange.close();
+        }
+    }
+
+    /**
+     * Adds the headers describing what will be sent for the file. A gzipped file is sent as it is stored, with
+     * Content-Encoding: gzip, to clients that accept gzip, and decompressed on its way out for the rest. Each of
+     * the two gets its own entity tag.
+     * @return whether the file is sent as it is stored, which is the only way Range requests are served
+     */
+    private boolean addRepresentationHeaders(HttpExchange exchange, int fileIndex, String mime, boolean compressed, ContentVersions.Version version) {
+        boolean asIs = !compressed || acceptsEncoding(exchange, "gzip");
+
+        exchange.getResponseHeaders().add("Content-Type", mime);
+
+        if (compressed) {
+            exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+        }
+
+        if (compressed && asIs) {
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            addValidators(exchange, version.etag("f" + fileIndex + "-gz"), version.modified());
+        } else {
+            addValidators(exchange, version.etag("f" + fileIndex), version.modified());
+        }
+
+        if (asIs) {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        }
+
+        return asIs;
+    }
+
+    /**
+     * Sends the whole of a gzipped file decompressed, with chunked transfer encoding since its size once
+     * decompressed isn't recorded anywhere
+     */
+    private void sendInflated(HttpExchange exchange, int fileIndex, InputStream stored) {
+        try (InputStream content = new GZIPInputStream(stored)) {
+            exchange.sendResponseHeaders(200, 0);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                content.transferTo(out);
+            }
+        } catch (IOException e) {
+            logger.info("Stopped serving file " + fileIndex + " decompressed: " + e.getMessage());
+            exchange.close();
+        }
+    }
+
+    /**
+     * Sends a file held in memory, or the part of it given by partToSend
+     */
+    private void sendBody(HttpExchange exchange, int fileIndex, ByteBuffer body, long[] part) {
+        body.position((int) part[0]);
+        if (part[1] >= 0) {
+            body.limit((int) part[1]);
+        }
+
+        try {
+            // -1 tells the server there's no body at all, 0 would mean chunked
+            exchange.sendResponseHeaders(part[1] < 0 ? 200 : 206, body.hasRemaining() ? body.remaining() : -1);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                byte[] buffer = new byte[8192];
+
+                while (body.hasRemaining()) {
+                    int count = Math.min(buffer.length, body.remaining());
+                    body.get(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                }
+            }
+        } catch (IOException e) {
+            logger.info("Stopped serving file " + fileIndex + ": " + e.getMessage());
+            exchange.close();
+        }
+    }
+
+    /**
+     * Works out which part of the file to send for the request's Range header, and adds the Content-Range header
+     * for it. Without a Range header, or with one that isn't a single byte range, the whole file is sent.
+     * @return the first byte to send and the byte after the last, -1 to send the whole file, or null if the range
+     * can't be satisfied
+     */
+    private static long[] partToSend(HttpExchange exchange, String range, long fileSize) {
+        long[] bounds = range == null ? null : parseRange(range, fileSize);
+
+        if (bounds == null) {
+            return new long[]{0, -1};
+        }
+
+        if (bounds.length == 0) {
+            exchange.getResponseHeaders().add("Content-Range", "bytes */" + fileSize);
+            return null;
+        }
+
+        exchange.getResponseHeaders().add("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + fileSize);
+        return new long[]{bounds[0], bounds[1] + 1};
+    }
+
+    /**
+     * Parses a single byte range, "bytes={first}-{last}", "bytes={first}-" or "bytes=-{suffix length}"
+     * @return the first and last byte of the range, an empty array if the range isn't satisfiable, or null if the
+     * header isn't a single byte range
+     */
+    private static long[] parseRange(String range, long fileSize) {
+        if (!range.startsWith("bytes=") || range.contains(",")) {
+            return null;
+        }
+
+        String[] bounds = range.substring("bytes=".length()).trim().split("-", -1);
+
+        if (bounds.length != 2) {
+            return null;
+        }
+
+        try {
+            long first;
+            long last;
+
+            if (bounds[0].isEmpty()) {
+                long suffix = Long.parseLong(bounds[1]);
+
+                if (suffix == 0) {
+                    return new long[0];
+                }
 
-        logger.info("Serving " + DataUtilities.parseTitle(metadata) + " as " + fileMime + " from index " + fileIndex);
+                first = Math.max(0, fileSize - suffix);
+                last = fileSize - 1;
+            } else {
+                first = Long.parseLong(bounds[0]);
+                last = bounds[1].isEmpty() ? Long.MAX_VALUE : Long.parseLong(bounds[1]);
 
-        String base64Data = worker.readChunkSafely(1, -fileIndex + indexOffset, true, 1);
+                // A range ending before it starts isn't a valid range at all
+                if (last < first) {
+                    return null;
+                }
 
-        byte[] fileBytes = Base64.getDecoder().decode(base64Data);
+                last = Math.min(last, fileSize - 1);
+            }
 
-        exchange.getResponseHeaders().add("Content-Type", fileMime);
+            return first >= fileSize ? new long[0] : new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The file's size once decoded. Files stored before it was recorded in their metadata are measured, which only
+     * looks at the end of each of their chunks.
+     */
+    private long fileSize(int fileIndex, String metadata, boolean raw) {
+        long size = DataUtilities.parseFileSize(metadata);
+
+        if (size >= 0) {
+            return size;
+        }
+
+        long storedLength = worker.spanningByteLength(1, -fileIndex + indexOffset, 1);
+
+        if (raw || storedLength < 4) {
+            return raw ? storedLength : 0;
+        }
+
+        // Base64 padding says how many bytes short of three the last four characters decode to
+        int padding = 0;
+        for (long position = storedLength - 2; position < storedLength; position++) {
+            byte[] character = new byte[1];
+            worker.readBytes(1 + (int) (position / DataWorker.BYTES_PER_CHUNK), -fileIndex + indexOffset, 1,
+                    (int) (position % DataWorker.BYTES_PER_CHUNK), character, 1, 0);
+
+            if (character[0] == '=') {
+                padding++;
+            }
+        }
+
+        return storedLength / 4 * 3 - padding;
+    }
+
+    /**
+     * Streams the file, or the part of it from byte start up to but not including byte end, to one client. The main
+     * thread decodes the file's chunks into a few reused buffers, as many each tick as fit in the tick budget, and an
+     * async task sends every buffer as soon as it is filled, so the first bytes are on their way while later chunks
+     * are still being read and memory use doesn't grow with the file. Base64 files are decoded on the way out.
+     * <p>
+     * Byte n of a raw file is byte n % BYTES_PER_CHUNK of its n / BYTES_PER_CHUNK-th chunk, so a part of it is read
+     * straight from the blocks holding it. Base64 files are read from the four characters holding the three bytes
+     * the part starts in.
+     * <p>
+     * The download is also the InputStream the sending task reads the filled buffers from, in order.
+     */
+    private class Download extends InputStream {
+
+        private final HttpExchange exchange;
+        private final int fileIndex;
+        private final boolean raw;
+        private final boolean inflate;
+
+        private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(STREAM_BUFFERS);
+        private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(STREAM_BUFFERS + 1);
+        private ByteBuffer current;
+
+        // Stored bytes still to read, from position up to storedEnd, or to the end of the file if that is -1
+        private long position;
+        private final long storedEnd;
+
+        // Where the stored file ends, or -1 if its metadata doesn't say, so read-ahead never loads chunks past it
+        private final long storedLength;
+
+        // Decoded bytes to drop from the front, and how many to send after them, or -1 to send all of them
+        private final int skip;
+        private final long length;
+
+        private volatile boolean stopped = false;
+
+        // The file's version when reading started; a change after that would mix two versions into one response
+        private long readVersion;
+
+        // Where the whole decoded file is collected for the cache on its way out, if it is to be cached
+        private ByteBuffer cacheBody;
+        private long cacheVersion;
+        private String cacheMime;
+        private boolean cacheCompressed;
+
+        // Rewrites the file's mirror on disk from the decoded file on its way out, if it needs rewriting
+        private FileMirror.Rebuild rebuild;
+
+        /**
+         * inflate decompresses a gzipped file on its way out, and only works on the whole of it. fileSize is the
+         * decoded size if it is known, or -1.
+         */
+        Download(HttpExchange exchange, int fileIndex, boolean raw, boolean inflate, long start, long end, long fileSize) {
+            this.exchange = exchange;
+            this.fileIndex = fileIndex;
+            this.raw = raw;
+            this.inflate = inflate;
+
+            if (raw) {
+                this.position = start;
+                this.storedEnd = end;
+                this.skip = 0;
+            } else {
+                this.position = start / 3 * 4;
+                this.storedEnd = end < 0 ? -1 : (end + 2) / 3 * 4;
+                this.skip = (int) (start % 3);
+            }
+            this.length = end < 0 ? -1 : end - start;
+            this.storedLength = fileSize < 0 ? -1 : raw ? fileSize : (fileSize + 2) / 3 * 4;
+
+            for (int i = 0; i < STREAM_BUFFERS; i++) {
+                free.add(ByteBuffer.allocate(DataWorker.BYTES_PER_CHUNK));
+            }
+        }
+
+        /**
+         * Also collects the file in an off-heap buffer as it is sent, and caches it once all of it has been
+         */
+        void cacheAs(long version, String mime, boolean compressed, long fileSize) {
+            this.cacheBody = ByteBuffer.allocateDirect((int) fileSize);
+            this.cacheVersion = version;
+            this.cacheMime = mime;
+            this.cacheCompressed = compressed;
+        }
+
+        /**
+         * Also writes the file to its mirror on disk as it is sent
+         */
+        void mirrorAs(String hash, long fileSize) {
+            try {
+                this.rebuild = fileMirror.rebuild(hash, fileSize);
+            } catch (IOException e) {
+                logger.warning("Failed to start rebuilding the mirror of file " + fileIndex + ": " + e.getMessage());
+            }
+        }
+
+        void start(int status) {
+            readVersion = versions.file(fileIndex).count();
+
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> send(status));
+            readChunks();
+        }
+
+        /**
+         * Fills free buffers with the next chunks until the tick budget is spent, then carries on next tick.
+         * Ends the download with FAILED if reading throws or the file changes between ticks. Runs on the main thread.
+         */
+        private void readChunks() {
+            if (stopped) {
+                return;
+            }
+
+            if (versions.file(fileIndex).count() != readVersion) {
+                logger.info("File " + fileIndex + " changed while it was being served, cutting the download off");
+                filled.add(FAILED);
+                return;
+            }
+
+            try {
+                if (readTick()) {
+                    Bukkit.getScheduler().runTask(plugin, this::readChunks);
+                }
+            } catch (RuntimeException e) {
+                logger.warning("Failed to read file " + fileIndex + " for a download: " + e.getMessage());
+                filled.add(FAILED);
+            }
+        }
+
+        /**
+         * Reads chunks into free buffers for up to the tick budget
+         * @return whether there is more to read
+         */
+        private boolean readTick() {
+            long start = System.nanoTime();
+            ByteBuffer buffer;
+
+            while ((buffer = free.poll()) != null) {
+                int chunk = (int) (position / DataWorker.BYTES_PER_CHUNK);
+                int offset = (int) (position % DataWorker.BYTES_PER_CHUNK);
+                int wanted = DataWorker.BYTES_PER_CHUNK - offset;
+
+                if (storedEnd >= 0) {
+                    wanted = (int) Math.min(wanted, storedEnd - position);
+                }
+
+                long readEnd = storedEnd >= 0 ? storedEnd : storedLength;
+                int chunksAfter = readEnd < 0 ? 0 : (int) Math.max(0, (readEnd - 1) / DataWorker.BYTES_PER_CHUNK - chunk);
+
+                int read = worker.readBytes(1 + chunk, -fileIndex + indexOffset, 1, offset, buffer.array(), wanted, chunksAfter);
 
-        respondWithBytes(exchange, 200, fileBytes);
+                buffer.clear().limit(read);
+                filled.add(buffer);
+                position += read;
+
+                // A chunk that ends before the part we want is the file's last
+                if (read < wanted || position == storedEnd || chunk + 1 == DataWorker.MAX_SPANNING_CHUNKS) {
+                    filled.add(END);
+                    return false;
+                }
+
+                if (System.nanoTime() - start >= tickBudgetNanos) {
+                    break;
+                }
+            }
+
+            return true;
+        }
+
+        private void send(int status) {
+            try {
+                // With no length, the response is sent with chunked transfer encoding
+                exchange.sendResponseHeaders(status, length < 0 ? 0 : length);
+
+                try (OutputStream out = exchange.getResponseBody()) {
+                    InputStream content = raw ? this : Base64.getDecoder().wrap(this);
+                    content.skipNBytes(skip);
+
+                    if (inflate) {
+                        content = new GZIPInputStream(content);
+                    }
+
+                    if (cacheBody != null || rebuild != null) {
+                        byte[] buffer = new byte[8192];
+                        int count;
+
+                        while ((count = content.read(buffer)) >= 0) {
+                            out.write(buffer, 0, count);
+                            keep(buffer, count);
+                        }
+
+                        finishKeeping();
+                    } else if (length < 0) {
+                        content.transferTo(out);
+                    } else {
+                        byte[] buffer = new byte[8192];
+                        long remaining = length;
+
+                        while (remaining > 0) {
+                            int count = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+                            if (count < 0) {
+                                break;
+                            }
+
+                            out.write(buffer, 0, count);
+                            remaining -= count;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Usually the client going away halfway through
+                logger.info("Stopped serving file " + fileIndex + ": " + e.getMessage());
+                stopped = true;
+                exchange.close();
+            } finally {
+                if (rebuild != null) {
+                    closeRebuild();
+                }
+            }
+        }
+
+        /**
+         * Adds bytes just sent to the cached body and the mirror being rebuilt
+         */
+        private void keep(byte[] buffer, int count) {
+            if (cacheBody != null) {
+                if (count > cacheBody.remaining()) {
+                    // Larger than its metadata said, so don't trust any of it
+                    cacheBody = null;
+                } else {
+                    cacheBody.put(buffer, 0, count);
+                }
+            }
+
+            if (rebuild != null) {
+                try {
+                    rebuild.write(buffer, 0, count);
+                } catch (IOException e) {
+                    logger.warning("Failed to rebuild the mirror of file " + fileIndex + ": " + e.getMessage());
+                    closeRebuild();
+                }
+            }
+        }
+
+        /**
+         * Caches the body and moves the rebuilt mirror into place, once all of the file has been sent
+         */
+        private void finishKeeping() {
+            if (cacheBody != null && !cacheBody.hasRemaining()) {
+                fileCache.put(fileIndex, cacheVersion, cacheMime, cacheCompressed, cacheBody.flip());
+            }
+
+            if (rebuild != null) {
+                try {
+                    rebuild.finish();
+                } catch (IOException e) {
+                    logger.warning("Failed to rebuild the mirror of file " + fileIndex + ": " + e.getMessage());
+                }
+            }
+        }
+
+        private void closeRebuild() {
+            try {
+                rebuild.close();
+            } catch (IOException e) {
+                logger.warning("Failed to remove a partial mirror of file " + fileIndex + ": " + e.getMessage());
+            }
+            rebuild = null;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (current == null || !current.hasRemaining()) {
+                if (current == END) {
+                    return -1;
+                }
+
+                if (current == FAILED) {
+                    throw new IOException("The rest of the file couldn't be read");
+                }
+
+                if (current != null) {
+                    free.add(current);
+                }
+
+                try {
+                    current = filled.poll(STREAM_WAIT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the next chunk");
+                }
+
+                if (current == null) {
+                    stopped = true;
+                    throw new InterruptedIOException("Gave up after waiting " + STREAM_WAIT_SECONDS + " seconds for the next chunk");
+                }
+            }
+
+            int count = Math.min(len, current.remaining());
+            current.get(b, off, count);
+            return count;
+        }
+
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer, which may be off-heap
+     */
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return len == 0 ? 0 : -1;
+            }
+
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
 
     }
 
@@ -0,0 +1,152 @@
+package com.decacagle.endpoints;
+
+import com.decacagle.DecaDB;
+import com.decacagle.data.DataUtilities;
+import com.decacagle.data.DataWorker;
+import com.sun.net.httpserver.HttpExchange;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Handles /files/{title}. GET downloads the file, through the same FileReader that serves /{title}. PUT stores the request body as the file's raw bytes, with the Content-Type header as its
+ * mime, so binary files don't need to be base64 encoded and sent to /upload.
+ * <p>
+ * The body is read off the main thread, straight into chunk-sized buffers, and gzipped and hashed there too. The whole
+ * upload is then written in one go on the main thread, where the file index is allocated.
+ */
+public class FilesHandler extends APIEndpoint {
+
+    private static final String PREFIX = "/files/";
+
+    private UploadHandler uploadHandler;
+    private FileReader fileReader;
+
+    public FilesHandler(Logger logger, World world, DecaDB plugin, DataWorker worker, UploadHandler uploadHandler, FileReader fileReader) {
+        super(logger, world, plugin, worker);
+
+        this.uploadHandler = uploadHandler;
+        this.fileReader = fileReader;
+    }
+
+    public void handle(HttpExchange exchange) {
+        if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            fileReader.handle(exchange);
+            return;
+        }
+
+        addCorsHeaders(exchange);
+
+        if (!preflightCheck(exchange)) {
+            if (exchange.getRequestMethod().equalsIgnoreCase("PUT")) {
+                upload(exchange);
+            } else {
+                exchange.getResponseHeaders().add("Allow", "GET, PUT, OPTIONS");
+                respond(exchange, 405, "Method Not Allowed: /files/{title} supports GET and PUT");
+            }
+        }
+    }
+
+    private void upload(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getRawPath();
+        String fileMime = exchange.getRequestHeaders().getFirst("Content-Type");
+        String fileTitle;
+
+        try {
+            fileTitle = path.startsWith(PREFIX) ? URLDecoder.decode(path.substring(PREFIX.length()), StandardCharsets.UTF_8) : "";
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "Bad Request: The file title in the path isn't properly percent encoded");
+            return;
+        }
+
+        if (fileTitle.isEmpty()) {
+            respond(exchange, 400, "Bad Request: Request path should be /files/{fileTitle}");
+            return;
+        }
+
+        if (fileMime == null || fileMime.isEmpty()) {
+            respond(exchange, 400, "Bad Request: Missing Content-Type header for file " + fileTitle);
+            return;
+        }
+
+        // Both end up in comma separated file metadata
+        if (fileTitle.contains(",") || fileMime.contains(",")) {
+            respond(exchange, 400, "Bad Request: File title and Content-Type can't contain commas");
+            return;
+        }
+
+        if (refuseOversizedUpload(exchange)) {
+            return;
+        }
+
+        // Reading the body can take as long as the client takes to send it, so keep it off the HTTP and main threads.
+        // Responses still go through the main thread, which owns the worker's transaction state.
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            List<ByteBuffer> pieces;
+
+            try {
+                pieces = readPieces(exchange);
+            } catch (IOException e) {
+                logger.info(e.getMessage());
+                runSynchronously(() -> respond(exchange, 400, "Bad Request: Failed to read the body of file " + fileTitle + " -- " + e.getMessage()));
+                return;
+            }
+
+            if (pieces == null) {
+                runSynchronously(() -> respond(exchange, 413, "Payload Too Large: Uploads can be at most " + maxUploadBytes() + " bytes"));
+                return;
+            }
+
+            List<ByteBuffer> compressed = DataUtilities.isCompressibleMime(fileMime) ? UploadHandler.compress(pieces) : null;
+            String compression = compressed == null ? null : DataUtilities.FILE_COMPRESSION_GZIP;
+            List<ByteBuffer> stored = compressed == null ? pieces : compressed;
+            String hash = uploadHandler.hashIfMirrored(stored);
+
+            runSynchronously(() -> worker.runInTransaction(() -> uploadHandler.writeRawFile(exchange, fileTitle, fileMime, compression, stored, hash)));
+        });
+    }
+
+    /**
+     * Reads the request body in pieces of DataWorker.BYTES_PER_CHUNK bytes, one per chunk the file will take.
+     * Stops as soon as the body goes over maxUploadBytes, for bodies sent without a Content-Length.
+     * @return the pieces, or null if the body is larger than an upload can be
+     */
+    private List<ByteBuffer> readPieces(HttpExchange exchange) throws IOException {
+        List<ByteBuffer> pieces = new ArrayList<>();
+        long limit = maxUploadBytes();
+        long size = 0;
+
+        try (InputStream body = exchange.getRequestBody()) {
+            while (true) {
+                byte[] piece = body.readNBytes(DataWorker.BYTES_PER_CHUNK);
+
+                // A body ending exactly on a piece boundary leaves nothing for another piece, unless it is empty
+                if (piece.length == 0 && !pieces.isEmpty()) {
+                    break;
+                }
+
+                size += piece.length;
+                if (size > limit) {
+                    return null;
+                }
+
+                pieces.add(ByteBuffer.wrap(piece));
+
+                if (piece.length < DataWorker.BYTES_PER_CHUNK) {
+                    break;
+                }
+            }
+        }
+
+        return pieces;
+    }
+
+}
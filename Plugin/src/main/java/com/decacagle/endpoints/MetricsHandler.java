@@ -0,0 +1,28 @@
+package com.decacagle.endpoints;
+
+import com.decacagle.DecaDB;
+import com.decacagle.data.DataWorker;
+import com.sun.net.httpserver.HttpExchange;
+import org.bukkit.World;
+
+import java.util.logging.Logger;
+
+/**
+ * Serves the plugin's metrics as plain text, one "name value" line each, to requests carrying the admin key
+ */
+public class MetricsHandler extends APIEndpoint {
+
+    public MetricsHandler(Logger logger, World world, DecaDB plugin, DataWorker worker) {
+        super(logger, world, plugin, worker);
+    }
+
+    public void handle(HttpExchange exchange) {
+        addCorsHeaders(exchange);
+
+        if (!preflightCheck(exchange) && requireAdmin(exchange, "/metrics")) {
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+            respond(exchange, 200, plugin.getMetrics().render());
+        }
+    }
+
+}
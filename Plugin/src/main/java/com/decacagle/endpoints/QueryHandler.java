@@ -10,17 +10,32 @@ import com.sun.net.httpserver.HttpExchange;
 import org.bukkit.World;
 
 import javax.xml.crypto.Data;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 public class QueryHandler extends APIEndpoint {
 
     private TableManager tableManager;
     private AuthHandler authHandler;
+    private ContentVersions versions;
 
-    public QueryHandler(Logger logger, World world, DecaDB plugin, DataWorker worker) {
+    // The version count at which each table was last seen without read protection, see isOpenForReading
+    private final Map<String, Long> openForReading = new ConcurrentHashMap<>();
+
+    private int compressMinBytes;
+
+    public QueryHandler(Logger logger, World world, DecaDB plugin, DataWorker worker, TableManager tableManager, ContentVersions versions) {
         super(logger, world, plugin, worker);
 
-        this.tableManager = new TableManager(logger, world, worker);
+        this.tableManager = tableManager;
+        this.versions = versions;
+        this.compressMinBytes = plugin.getConfig().getInt("query-compression.min-bytes", 1024);
 
         this.authHandler = new AuthHandler(logger, world, plugin, worker, tableManager);
 
@@ -31,11 +46,32 @@ public class QueryHandler extends APIEndpoint {
 
         if (!preflightCheck(exchange)) {
 
-            String query = parseExchangeBody(exchange);
+            // GET /query?q={query} lets browsers keep SELECT results and revalidate them, which they never do for POST
+            boolean get = exchange.getRequestMethod().equalsIgnoreCase("GET");
+            String query = get ? parseQueryParameter(exchange) : parseExchangeBody(exchange);
 
             logger.info("received query: " + query);
 
-            runSynchronously(() -> parseQuery(exchange, query));
+            String selectedTable = selectedTable(query.split(" "));
+
+            if (get && selectedTable == null) {
+                exchange.getResponseHeaders().add("Allow", "GET, POST, OPTIONS");
+                respond(exchange, 405, "Method Not Allowed: Only SELECT queries can be sent with GET, send the rest with POST");
+                return;
+            }
+
+            // A client that already has this result gets a 304 without the main thread or the world being involved,
+            // as long as nobody needs authorizing to read it
+            if (selectedTable != null) {
+                ContentVersions.Version version = versions.table(selectedTable);
+                String tag = resultTag(version, query.split(" "));
+
+                if (isOpenForReading(selectedTable, version) && respondIfNotModified(exchange, tag, version.modified(), encodedEtag(tag, "gzip"), encodedEtag(tag, "deflate"))) {
+                    return;
+                }
+            }
+
+            runSynchronously(() -> worker.runInTransaction(() -> parseQuery(exchange, query)));
 
         }
 
@@ -92,16 +128,16 @@ public class QueryHandler extends APIEndpoint {
                 respond(exchange, 400, "Bad Request: Improper query, select queries should be formatted as SELECT {* or id} FROM {tableTitle}");
             }
         } else if (args[0].equalsIgnoreCase("create")) {
-            if (args.length == 3) {
+            if (args.length == 3 || args.length == 4) {
                 if (args[1].equalsIgnoreCase("table")) {
 
                     createTable(exchange, args);
 
                 } else {
-                    respond(exchange, 400, "Bad Request: Improper query, create queries should be formatted as CREATE TABLE {tableTitle}");
+                    respond(exchange, 400, "Bad Request: Improper query, create queries should be formatted as CREATE TABLE {tableTitle} {optional slotsPerChunk}");
                 }
             } else {
-                respond(exchange, 400, "Bad Request: Improper query, create queries should be formatted as CREATE TABLE {tableTitle}");
+                respond(exchange, 400, "Bad Request: Improper query, create queries should be formatted as CREATE TABLE {tableTitle} {optional slotsPerChunk}");
             }
         } else if (args[0].equalsIgnoreCase("insert")) {
             if (args.length >= 5) {
@@ -218,13 +254,24 @@ public class QueryHandler extends APIEndpoint {
 
         } else if (args[0].equalsIgnoreCase("auth")) {
             authHandler.parseAuthQuery(exchange, query);
+        } else if (args[0].equalsIgnoreCase("migrate")) {
+            if (!requireAdmin(exchange, "MIGRATE")) {
+                return;
+            }
+
+            if (args.length == 3 && args[1].equalsIgnoreCase("storage")) {
+                migrateStorage(exchange, args);
+            } else {
+                respond(exchange, 400, "Bad request: Improper query, migrate queries should be formatted as MIGRATE STORAGE {wool or pdc}");
+            }
         } else {
-            respond(exchange, 400, "Bad Request: Action words supported are SELECT, INSERT, CREATE, UPDATE, DELETE, PROTECT and AUTH");
+            respond(exchange, 400, "Bad Request: Action words supported are SELECT, INSERT, CREATE, UPDATE, DELETE, PROTECT, AUTH and MIGRATE");
         }
 
     }
 
     public void selectAll(HttpExchange exchange, String tableTitle, String[] args) {
+        ContentVersions.Version version = versions.table(tableTitle);
         ProtectionCheckResponse protectionCheck = checkProtected(exchange, tableTitle, 'r');
 
         // Check if protection check resulted in response to request. If so, do not continue
@@ -237,7 +284,7 @@ public class QueryHandler extends APIEndpoint {
                     respond(exchange, response.getStatusCode(), response.getStatusMessage());
                 } else {
                     exchange.getResponseHeaders().add("Content-Type", "application/json");
-                    respond(exchange, response.getStatusCode(), response.getResponse());
+                    respondCompressible(exchange, response.getStatusCode(), response.getResponse(), compressMinBytes);
                 }
 
             } else {
@@ -248,7 +295,8 @@ public class QueryHandler extends APIEndpoint {
                     respond(exchange, response.getStatusCode(), response.getStatusMessage());
                 } else {
                     exchange.getResponseHeaders().add("Content-Type", "application/json");
-                    respond(exchange, response.getStatusCode(), response.getResponse());
+                    addValidators(exchange, resultTag(version, args), version.modified());
+                    respondCompressible(exchange, response.getStatusCode(), response.getResponse(), compressMinBytes);
                 }
 
             }
@@ -256,6 +304,7 @@ public class QueryHandler extends APIEndpoint {
     }
 
     public void selectAllWhere(HttpExchange exchange, String tableTitle, String[] args) {
+        ContentVersions.Version version = versions.table(tableTitle);
         ProtectionCheckResponse protectionCheck = checkProtected(exchange, tableTitle, 'r');
 
         // Check if protection check resulted in response to request. If so, do not continue
@@ -268,20 +317,14 @@ public class QueryHandler extends APIEndpoint {
                 if (condition.length == 2) {
                     String key = condition[0];
                     String target = condition[1];
-                    MethodResponse response = tableManager.readTableWithCondition(tableTitle, key, target);
+                    // userId == caller is checked during the scan, so only the caller's rows are kept
+                    MethodResponse response = tableManager.readTableWithConditionForUser(tableTitle, key, target, userId);
 
                     if (response.hasError()) {
                         respond(exchange, response.getStatusCode(), response.getStatusMessage());
                     } else {
-
-                        MethodResponse filterAttempt = DataUtilities.filterJsonArray(response.getResponse(), "userId", "" + userId);
-
-                        if (filterAttempt.hasError()) {
-                            respond(exchange, response.getStatusCode(), response.getStatusMessage());
-                        } else {
-                            exchange.getResponseHeaders().add("Content-Type", "application/json");
-                            respond(exchange, filterAttempt.getStatusCode(), filterAttempt.getResponse());
-                        }
+                        exchange.getResponseHeaders().add("Content-Type", "application/json");
+                        respondCompressible(exchange, response.getStatusCode(), response.getResponse(), compressMinBytes);
                     }
 
                 } else {
@@ -301,7 +344,8 @@ public class QueryHandler extends APIEndpoint {
                         respond(exchange, response.getStatusCode(), response.getStatusMessage());
                     } else {
                         exchange.getResponseHeaders().add("Content-Type", "application/json");
-                        respond(exchange, response.getStatusCode(), response.getResponse());
+                        addValidators(exchange, resultTag(version, args), version.modified());
+                        respondCompressible(exchange, response.getStatusCode(), response.getResponse(), compressMinBytes);
                     }
 
                 } else {
@@ -316,6 +360,7 @@ public class QueryHandler extends APIEndpoint {
     public void selectId(HttpExchange exchange, String[] args) {
         int rowId = Integer.parseInt(args[1]);
         String tableTitle = args[3];
+        ContentVersions.Version version = versions.table(tableTitle);
 
         ProtectionCheckResponse protectionCheck = checkProtected(exchange, tableTitle, 'r');
 
@@ -332,7 +377,7 @@ public class QueryHandler extends APIEndpoint {
                 } else {
                     if (DataUtilities.meetsCondition(response.getResponse(), "userId", "" + userId)) {
                         exchange.getResponseHeaders().add("Content-Type", "application/json");
-                        respond(exchange, response.getStatusCode(), response.getResponse());
+                        respondCompressible(exchange, response.getStatusCode(), response.getResponse(), compressMinBytes);
                     } else {
                         respond(exchange, 401, "Access Denied: Not Authorized");
                     }
@@ -347,7 +392,8 @@ public class QueryHandler extends APIEndpoint {
                     respond(exchange, response.getStatusCode(), response.getStatusMessage());
                 } else {
                     exchange.getResponseHeaders().add("Content-Type", "application/json");
-                    respond(exchange, response.getStatusCode(), response.getResponse());
+                    addValidators(exchange, resultTag(version, args), version.modified());
+                    respondCompressible(exchange, response.getStatusCode(), response.getResponse(), compressMinBytes);
                 }
 
             }
@@ -357,8 +403,20 @@ public class QueryHandler extends APIEndpoint {
     public void createTable(HttpExchange exchange, String[] args) {
 // TODO: Check for admin key, return 401 if not admin
         String tableTitle = args[2];
+
+        // optionally pack several rows into each chunk
+        int slotsPerChunk = 1;
+        if (args.length == 4) {
+            try {
+                slotsPerChunk = Integer.parseInt(args[3]);
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, "Bad Request: Slots per chunk must be a number, received " + args[3]);
+                return;
+            }
+        }
+
         // create table by the name of tableTitle
-        MethodResponse response = tableManager.createTable(tableTitle);
+        MethodResponse response = tableManager.createTable(tableTitle, slotsPerChunk);
 
         if (response.hasError()) {
             respond(exchange, response.getStatusCode(), response.getStatusMessage());
@@ -560,6 +618,7 @@ public class QueryHandler extends APIEndpoint {
         int z = Integer.parseInt(args[3]);
 
         worker.deleteChunkCompletely(x, z, false, 1);
+        versions.everythingChanged();
 
         respond(exchange, 200, "Success!");
     }
@@ -571,10 +630,55 @@ public class QueryHandler extends APIEndpoint {
 
         worker.deleteChunkCompletely(x, z, false, 1);
         worker.writeToChunk(body, x, z, false, 1);
+        versions.everythingChanged();
 
         respond(exchange, 200, "Success!");
     }
 
+    /**
+     * Copies the database into another storage backend, switches to it and saves the choice to the config
+     */
+    public void migrateStorage(HttpExchange exchange, String[] args) {
+        String backend = args[2].toLowerCase();
+
+        if (!PageStore.isBackend(backend)) {
+            respond(exchange, 400, "Bad Request: Unknown storage backend " + args[2] + ", supported backends are wool and pdc");
+            return;
+        }
+
+        if (backend.equals(plugin.getConfig().getString("storage.backend", "wool"))) {
+            respond(exchange, 400, "Bad Request: Already using the " + backend + " storage backend");
+            return;
+        }
+
+        worker.flushAllPendingWrites();
+
+        // Only created once the migration goes ahead, since a working set starts loading and ticketing chunks straight away
+        PageStore target = PageStore.forBackend(backend, world, plugin);
+        int regions;
+
+        try {
+            regions = new StorageMigrator(logger, tableManager).migrate(worker.getStore(), target);
+        } catch (RuntimeException e) {
+            target.close();
+            logger.severe("Failed to migrate to the " + backend + " storage backend: " + e.getMessage());
+            respond(exchange, 500, "Internal Server Error: Failed to migrate to the " + backend + " storage backend -- " + e.getMessage());
+            return;
+        }
+
+        worker.setStore(target);
+
+        // The copy went straight to the target, not through the write-ahead log, and only lives in loaded chunks until
+        // the world is saved. Save it now, which also checkpoints the log, so the config never points at a backend
+        // whose data isn't on disk yet.
+        world.save();
+
+        plugin.getConfig().set("storage.backend", backend);
+        plugin.saveConfig();
+
+        respond(exchange, 200, "Migrated " + regions + " regions to the " + backend + " storage backend");
+    }
+
     public void protect(HttpExchange exchange, String[] args) {
         String tableTitle = args[1];
         String protectionFlags = args[2];
@@ -653,10 +757,19 @@ public class QueryHandler extends APIEndpoint {
     public ProtectionCheckResponse checkProtected(HttpExchange exchange, String tableTitle, char flag) {
         MethodResponse checkProtection = tableManager.getProtectionFlags(tableTitle);
         if (checkProtection.hasError()) {
+            openForReading.remove(tableTitle);
             respond(exchange, checkProtection.getStatusCode(), checkProtection.getStatusMessage());
             return new ProtectionCheckResponse(true, 0, false, true);
         } else {
             String flags = checkProtection.getResponse();
+
+            // Protecting a table changes its version, so this stays true only until then
+            if (flags.indexOf('r') == -1 && flags.indexOf('*') == -1) {
+                openForReading.put(tableTitle, versions.table(tableTitle).count());
+            } else {
+                openForReading.remove(tableTitle);
+            }
+
             if (flags.indexOf(flag) != -1 || flags.indexOf('*') != -1) {
                 String authToken = getAuthTokenFromRequest(exchange);
                 if (authToken == null) {
@@ -677,6 +790,59 @@ public class QueryHandler extends APIEndpoint {
         }
     }
 
+    /**
+     * Whether the table was found readable without authorization at this version, so a result of it can be
+     * revalidated off the main thread. Unknown tables, such as every table right after startup, count as protected
+     * until checkProtected has looked at them.
+     */
+    public boolean isOpenForReading(String tableTitle, ContentVersions.Version version) {
+        Long openAt = openForReading.get(tableTitle);
+        return openAt != null && openAt == version.count();
+    }
+
+    /**
+     * The table a SELECT query reads, or null if the query isn't one of the SELECT forms parseQuery accepts
+     */
+    public String selectedTable(String[] args) {
+        if (args.length >= 4 && args[0].equalsIgnoreCase("select") && args[2].equalsIgnoreCase("from")
+                && (args[1].equals("*") || isNumeric(args[1]))) {
+            return args[3];
+        }
+
+        return null;
+    }
+
+    /**
+     * The ETag of a SELECT query's result: the version of its table, and a hash of the query so the tag of one
+     * query's result never matches another's
+     */
+    public String resultTag(ContentVersions.Version version, String[] args) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(String.join(" ", args).getBytes(StandardCharsets.UTF_8));
+            return version.etag("t" + HexFormat.of().formatHex(hash, 0, 8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java runtime has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The q parameter of the request's query string, or an empty string if there isn't one
+     */
+    public String parseQueryParameter(HttpExchange exchange) {
+        String queryString = exchange.getRequestURI().getRawQuery();
+
+        if (queryString != null) {
+            for (String parameter : queryString.split("&")) {
+                if (parameter.startsWith("q=")) {
+                    return URLDecoder.decode(parameter.substring(2), StandardCharsets.UTF_8);
+                }
+            }
+        }
+
+        return "";
+    }
+
     public boolean isNumeric(String str) {
         try {
             Integer.parseInt(str);
@@ -1,47 +1,87 @@
 package com.decacagle.endpoints;
 
 import com.decacagle.DecaDB;
+import com.decacagle.data.ContentVersions;
 import com.decacagle.data.DataUtilities;
 import com.decacagle.data.DataWorker;
+import com.decacagle.data.FileCache;
+import com.decacagle.data.FileMirror;
+import com.decacagle.data.FileRoutes;
 import com.decacagle.data.TableManager;
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpServer;
+import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.Sign;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.IntPredicate;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 public class UploadHandler extends APIEndpoint {
 
-    private HttpServer server;
     private TableManager tableManager;
+    private FileCache fileCache;
+    private FileMirror fileMirror;
+    private ContentVersions versions;
+    private FileRoutes fileRoutes;
 
     private int indexOffset = -1;
 
-    public UploadHandler(HttpServer server, Logger logger, World world, DecaDB plugin, DataWorker worker) {
+    public UploadHandler(Logger logger, World world, DecaDB plugin, DataWorker worker, TableManager tableManager,
+                         FileCache fileCache, FileMirror fileMirror, ContentVersions versions, FileRoutes fileRoutes) {
         super(logger, world, plugin, worker);
 
-        this.server = server;
-        this.tableManager = new TableManager(logger, world, worker);
+        this.tableManager = tableManager;
+        this.fileCache = fileCache;
+        this.fileMirror = fileMirror;
+        this.versions = versions;
+        this.fileRoutes = fileRoutes;
     }
 
     public void handle(HttpExchange exchange) {
         addCorsHeaders(exchange);
 
-        if (!preflightCheck(exchange)) {
-            runSynchronously(() -> writeFile(exchange));
+        if (!preflightCheck(exchange) && !refuseOversizedUpload(exchange)) {
+            // Reading, decoding, gzipping and hashing a large file takes a while, so only storing it happens on the
+            // main thread, which owns the worker's transaction state
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> writeFile(exchange));
         }
     }
 
+    /**
+     * Reads a {fileTitle};{mime};{base64Data} upload and gets it ready to store, then stores it on the main thread.
+     * Runs off the main thread.
+     */
     public void writeFile(HttpExchange exchange) {
 
-        String uploadBody = parseExchangeBody(exchange);
+        String uploadBody;
+
+        try {
+            uploadBody = parseExchangeBody(exchange, maxUploadBytes());
+        } catch (IOException e) {
+            logger.info(e.getMessage());
+            runSynchronously(() -> respond(exchange, 400, "Bad Request: Failed to read the body of the upload -- " + e.getMessage()));
+            return;
+        }
+
+        if (uploadBody == null) {
+            runSynchronously(() -> respond(exchange, 413, "Payload Too Large: Uploads can be at most " + maxUploadBytes() + " bytes"));
+            return;
+        }
+
         String[] bodyParts = uploadBody.split(";");
 
         if (bodyParts.length != 3) {
-            respond(exchange, 400, "Bad Request: Body of request should be {fileTitle};{mime};{base64Data}, received: " + bodyParts[0] + ";" + bodyParts[1] + ";data");
+            runSynchronously(() -> respond(exchange, 400, "Bad Request: Body of request should be {fileTitle};{mime};{base64Data}, received: " + bodyParts[0] + ";" + bodyParts[1] + ";data"));
             return;
         }
 
@@ -49,6 +89,121 @@ public class UploadHandler extends APIEndpoint {
         String fileMime = bodyParts[1];
         String fileData = bodyParts[2];
 
+        // Text assets are stored gzipped as raw bytes, which also drops the base64
+        if (DataUtilities.isCompressibleMime(fileMime)) {
+            List<ByteBuffer> compressed = null;
+
+            try {
+                compressed = compress(List.of(ByteBuffer.wrap(Base64.getDecoder().decode(fileData))));
+            } catch (IllegalArgumentException e) {
+                logger.info("File " + fileTitle + " isn't valid base64, not compressing it: " + e.getMessage());
+            }
+
+            if (compressed != null) {
+                List<ByteBuffer> pieces = compressed;
+                String hash = hashIfMirrored(pieces);
+
+                runSynchronously(() -> worker.runInTransaction(() ->
+                        writeRawFile(exchange, fileTitle, fileMime, DataUtilities.FILE_COMPRESSION_GZIP, pieces, hash)));
+                return;
+            }
+        }
+
+        long fileSize = fileData.length() / 4 * 3 - (fileData.endsWith("==") ? 2 : fileData.endsWith("=") ? 1 : 0);
+
+        List<ByteBuffer> content = null;
+        if (fileMirror.isEnabled()) {
+            try {
+                content = List.of(ByteBuffer.wrap(Base64.getDecoder().decode(fileData)));
+            } catch (IllegalArgumentException e) {
+                // Stored as sent all the same, just never mirrored
+                logger.info("File " + fileTitle + " isn't valid base64, not mirroring it: " + e.getMessage());
+            }
+        }
+
+        List<ByteBuffer> decoded = content;
+        String hash = content == null ? null : FileMirror.hashOf(content);
+
+        runSynchronously(() -> worker.runInTransaction(() ->
+                storeFile(exchange, fileTitle, fileMime, null, DataUtilities.FILE_ENCODING_BASE64, fileSize, decoded, hash,
+                        zIndex -> worker.writeToChunk(fileData, 1, zIndex, true, 1))));
+    }
+
+    /**
+     * Stores a file sent to PUT /files/{title} as raw bytes, read off the request in pieces of
+     * DataWorker.BYTES_PER_CHUNK bytes. Each piece is written to its chunk as-is, two blocks per byte,
+     * with no base64 or hex text in between. compression says how the pieces are compressed, or is null if they aren't.
+     * hash is from hashIfMirrored, worked out before the pieces reach the main thread.
+     */
+    public void writeRawFile(HttpExchange exchange, String fileTitle, String fileMime, String compression, List<ByteBuffer> pieces, String hash) {
+        long fileSize = 0;
+        for (ByteBuffer piece : pieces) {
+            fileSize += piece.remaining();
+        }
+
+        storeFile(exchange, fileTitle, fileMime, compression, DataUtilities.FILE_ENCODING_RAW, fileSize, hash == null ? null : pieces, hash,
+                zIndex -> worker.writeBytes(pieces, 1, zIndex, 1));
+    }
+
+    /**
+     * The SHA-256 of a file's stored bytes if it is going to be mirrored, or null. Hashing a large file takes a
+     * while, so call this before the file is handed to the main thread.
+     */
+    public String hashIfMirrored(List<ByteBuffer> content) {
+        return fileMirror.isEnabled() ? FileMirror.hashOf(content) : null;
+    }
+
+    /**
+     * Gzips the remaining bytes of every piece into new pieces of at most DataWorker.BYTES_PER_CHUNK bytes,
+     * ready for writeRawFile
+     * @return the compressed pieces, or null if compressing saves less than an eighth of the size, which isn't
+     * worth decompressing the file for every client that doesn't accept gzip
+     */
+    public static List<ByteBuffer> compress(List<ByteBuffer> pieces) {
+        long size = 0;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192)) {
+            byte[] buffer = new byte[8192];
+
+            for (ByteBuffer piece : pieces) {
+                ByteBuffer remaining = piece.duplicate();
+                size += remaining.remaining();
+
+                while (remaining.hasRemaining()) {
+                    int count = Math.min(buffer.length, remaining.remaining());
+                    remaining.get(buffer, 0, count);
+                    gzip.write(buffer, 0, count);
+                }
+            }
+        } catch (IOException e) {
+            // Only the in-memory stream is written to, which doesn't throw
+            throw new UncheckedIOException(e);
+        }
+
+        if (compressed.size() > size - size / 8) {
+            return null;
+        }
+
+        byte[] bytes = compressed.toByteArray();
+        List<ByteBuffer> result = new ArrayList<>();
+
+        for (int offset = 0; offset < bytes.length; offset += DataWorker.BYTES_PER_CHUNK) {
+            result.add(ByteBuffer.wrap(bytes, offset, Math.min(DataWorker.BYTES_PER_CHUNK, bytes.length - offset)).slice());
+        }
+
+        return result;
+    }
+
+    /**
+     * Allocates an index for the file, writes its metadata, has writeData write its data starting at chunk X 1
+     * of the given Z index, then links the file in and creates its route. fileSize is the file's size once decoded,
+     * compressed if compression isn't null. content is the decoded file, to be mirrored to disk, and hash is its
+     * SHA-256 for the metadata, or both are null to do neither.
+     */
+    private void storeFile(HttpExchange exchange, String fileTitle, String fileMime, String compression, String encoding,
+                           long fileSize, List<ByteBuffer> content, String hash, IntPredicate writeData) {
+
         // Check for duplicate file titles
         if (fileExists(fileTitle)) {
             respond(exchange, 400, "Bad Request: A file with the title '" + fileTitle + "' already exists!");
@@ -62,7 +217,13 @@ public class UploadHandler extends APIEndpoint {
         int index = getNextIndex();
         int last = index - 1;
 
-        String newFileMetadata = DataUtilities.fileMetadataBuilder(fileTitle, fileMime, last, 0);
+        // Recycled indices may still have the file that was deleted from them cached
+        fileCache.invalidate(index);
+
+        // Taken before writeData, which consumes the pieces of raw files
+        List<ByteBuffer> mirrored = content == null ? null : content.stream().map(ByteBuffer::duplicate).toList();
+
+        String newFileMetadata = DataUtilities.fileMetadataBuilder(fileTitle, fileMime, last, 0, compression, encoding, fileSize, hash);
 
         // Ensure the chunk is completely clean before writing
         cleanChunkCompletely(0, -index + indexOffset);
@@ -72,21 +233,22 @@ public class UploadHandler extends APIEndpoint {
 
         if (metadataWriteResult) {
 
-            boolean writeFileResult = worker.writeToChunk(fileData, 1, -index + indexOffset, true, 1);
+            boolean writeFileResult = writeData.test(-index + indexOffset);
 
             if (writeFileResult) {
 
                 updateLastMetadata(index);
 
-                String newContext = DataUtilities.contextNameBuilder(fileTitle);
+                if (hash != null) {
+                    fileMirror.store(hash, fileSize, mirrored);
+                }
 
-                try {
-                    server.createContext(newContext, new FileReader(logger, world, plugin, worker, index));
-                } catch (Exception e) {
-                    respond(exchange, 500, "Internal Server Error: Failed to create route -- " + e.getMessage());
-                    return;
+                if (fileRoutes.contains(fileTitle)) {
+                    logger.info("File " + fileTitle + " is now served from index " + index + " instead of the file uploaded before it");
                 }
 
+                String newContext = fileRoutes.add(fileTitle, index);
+
                 placeSign(fileTitle, fileMime, index);
 
                 logger.info("Created new route: " + newContext);
@@ -95,7 +257,7 @@ public class UploadHandler extends APIEndpoint {
                 respond(exchange, 200, "{\"message\":\"Wrote file " + fileTitle + " successfully!\", \"link\": \"http://localhost:8000" + newContext + "\",\"fileId\":" + index + "}");
 
             } else {
-                respond(exchange, 500, "Internal Server Error: Failed to write base64 data!");
+                respond(exchange, 500, "Internal Server Error: Failed to write file data!");
             }
 
         } else {
@@ -174,9 +336,9 @@ public class UploadHandler extends APIEndpoint {
                     Block block = world.getBlockAt(chunkX, y, chunkZ);
                     if (DataUtilities.isWoolBlock(block.getType())) {
                         if (y == -64) {
-                            block.setType(Material.GRASS_BLOCK);
+                            block.setType(Material.GRASS_BLOCK, false);
                         } else {
-                            block.setType(Material.AIR);
+                            block.setType(Material.AIR, false);
                         }
                     }
                 }
@@ -243,13 +405,11 @@ public class UploadHandler extends APIEndpoint {
             String metadata = worker.readChunkSafely(0, -(index - 1) + indexOffset, false, 1);
 
             if (DataUtilities.isValidFileMetadata(metadata)) {
-                String title = DataUtilities.parseTitle(metadata);
-                String mime = DataUtilities.parseFileMime(metadata);
                 int last = DataUtilities.parseLastIndexTable(metadata);
 
                 worker.deleteChunkCompletely(0, -(index - 1) + indexOffset, false, 1);
 
-                String newMetadata = DataUtilities.fileMetadataBuilder(title, mime, last, index);
+                String newMetadata = DataUtilities.relinkFileMetadata(metadata, last, index);
 
                 worker.writeToChunk(newMetadata, 0, -(index - 1) + indexOffset, false, 1);
             }
@@ -0,0 +1,598 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Offline reader for MCDB worlds. Parses the Anvil region files (region/r.X.Z.mca) of a stopped server or a backup
+ * directly, decodes MCDB's layout from the wool blocks (or the chunk persistent data of the pdc backend) and exports
+ * every table as NDJSON, one row per line, plus a files.ndjson listing the stored files.
+ * Region files are memory-mapped and their chunk tables parsed in parallel, while a chunk is only decompressed and
+ * decoded the first time MCDB's layout reads it, so memory follows the database rather than the size of the world.
+ * Tables are exported in parallel, so nothing here needs the live server.
+ *
+ * Usage: java Main.java {worldFolder} {outputFolder} [threads]
+ * where worldFolder is the data world, mcdb_data by default, or world for databases kept in the main world.
+ */
+public class Main {
+
+    // MCDB layout, see TableManager, OverflowManager and the file handlers in the plugin
+    private static final int TABLE_INDEX_OFFSET = 1;
+    private static final int OVERFLOW_COUNTER_X = -2;
+    private static final int ROW_POINTER_WIDTH = 6;
+    private static final int CHUNK_LAYERS = 384;
+    private static final int MAX_SPANNING_CHUNKS = 4096;
+    private static final String PDC_KEY_PREFIX = "decadb:region_";
+
+    private static final Pattern OVERFLOW_REFERENCE = Pattern.compile("\\{\"\\$overflow\":(\\d+)}");
+
+    private static final ChunkData NO_CHUNK = new ChunkData();
+
+    private final Map<Long, ChunkLocation> locations = new ConcurrentHashMap<>();
+    private final Map<Long, ChunkData> chunks = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java Main.java <worldFolder> <outputFolder> [threads]");
+            return;
+        }
+
+        Path world = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        new Main().run(world, output, threads);
+    }
+
+    public void run(Path world, Path output, int threads) throws Exception {
+        Path regionFolder = world.resolve("region");
+        if (!Files.isDirectory(regionFolder)) {
+            System.err.println("No region folder in " + world);
+            return;
+        }
+
+        List<Path> regionFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(regionFolder, "r.*.mca")) {
+            for (Path file : stream) {
+                regionFiles.add(file);
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.currentTimeMillis();
+
+        pool.submit(() -> regionFiles.parallelStream().forEach(this::loadRegionFile)).get();
+
+        System.out.println("Located " + locations.size() + " chunks in " + regionFiles.size() + " region files in "
+                + (System.currentTimeMillis() - start) + " ms using " + threads + " threads");
+
+        Files.createDirectories(output.resolve("tables"));
+
+        List<TableInfo> tables = readTables();
+        AtomicInteger rowCount = new AtomicInteger();
+
+        pool.submit(() -> tables.parallelStream().forEach(table -> rowCount.addAndGet(exportTable(table, output)))).get();
+
+        int fileCount = exportFiles(output);
+
+        System.out.println("Exported " + tables.size() + " tables with " + rowCount.get() + " rows and " + fileCount
+                + " file entries to " + output + " in " + (System.currentTimeMillis() - start) + " ms");
+
+        pool.shutdown();
+    }
+
+    // ==================== MCDB LAYOUT ====================
+
+    private static class TableInfo {
+        int index;
+        String title;
+        int slots;
+    }
+
+    private List<TableInfo> readTables() {
+        List<TableInfo> tables = new ArrayList<>();
+        Set<Integer> visited = new HashSet<>();
+
+        int tableIndex = parseIndex(readRegion(0, 1, 0, CHUNK_LAYERS));
+
+        while (tableIndex != 0 && visited.add(tableIndex)) {
+            String metadata = readRegion(0, tableIndex + TABLE_INDEX_OFFSET, 0, CHUNK_LAYERS);
+            String[] fields = metadata.split(",");
+
+            if (fields.length < 3) {
+                System.err.println("Stopped at corrupt metadata for table " + tableIndex + ": " + metadata);
+                break;
+            }
+
+            TableInfo table = new TableInfo();
+            table.index = tableIndex;
+            table.title = fields[2];
+            table.slots = 1;
+
+            for (int i = 3; i < fields.length; i++) {
+                if (fields[i].startsWith("slots:")) {
+                    table.slots = parseIndex(fields[i].substring("slots:".length()));
+                }
+            }
+
+            if (table.slots < 1 || CHUNK_LAYERS % table.slots != 0) {
+                table.slots = 1;
+            }
+
+            tables.add(table);
+            tableIndex = parseIndex(fields[1]);
+        }
+
+        return tables;
+    }
+
+    private int exportTable(TableInfo table, Path output) {
+        int z = table.index + TABLE_INDEX_OFFSET;
+        int layers = CHUNK_LAYERS / table.slots;
+        int rows = 0;
+
+        Path file = output.resolve("tables").resolve(table.title.replaceAll("[^A-Za-z0-9_.-]", "_") + ".ndjson");
+
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            Set<Integer> visited = new HashSet<>();
+            int rowIndex = parseIndex(readRegion(1, z, 0, CHUNK_LAYERS));
+
+            while (rowIndex != 0 && visited.add(rowIndex)) {
+                // Row n lives in slot (n - 1) % slots of row chunk (n - 1) / slots, right after the start index chunk
+                int x = (rowIndex - 1) / table.slots + 1 + TABLE_INDEX_OFFSET;
+                int slot = (rowIndex - 1) % table.slots;
+
+                String row = readRegion(x, z, slot * layers, layers);
+                int separator = row.indexOf(';');
+
+                if (separator < 0) {
+                    System.err.println("Stopped table " + table.title + " at corrupt row " + rowIndex);
+                    break;
+                }
+
+                String[] pointers = row.substring(0, separator).split(",");
+                String content = resolveOverflow(row.substring(separator + 1), z);
+
+                writer.write(content);
+                writer.write('\n');
+                rows++;
+
+                rowIndex = pointers.length == 2 ? parseIndex(pointers[1]) : 0;
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to export table " + table.title + ": " + e.getMessage());
+        }
+
+        System.out.println("  " + table.title + ": " + rows + " rows");
+
+        return rows;
+    }
+
+    private String resolveOverflow(String content, int z) {
+        if (!content.contains("\"$overflow\"")) {
+            return content;
+        }
+
+        Matcher matcher = OVERFLOW_REFERENCE.matcher(content);
+        StringBuilder resolved = new StringBuilder();
+
+        while (matcher.find()) {
+            StringBuilder value = new StringBuilder();
+            int page = Integer.parseInt(matcher.group(1));
+            Set<Integer> visited = new HashSet<>();
+
+            while (page != 0 && visited.add(page)) {
+                String pageData = readRegion(OVERFLOW_COUNTER_X - page, z, 0, CHUNK_LAYERS);
+                if (pageData.length() <= ROW_POINTER_WIDTH) {
+                    break;
+                }
+
+                value.append(pageData, ROW_POINTER_WIDTH + 1, pageData.length());
+                page = parseIndex(pageData.substring(0, ROW_POINTER_WIDTH));
+            }
+
+            matcher.appendReplacement(resolved, Matcher.quoteReplacement(value.toString()));
+        }
+
+        matcher.appendTail(resolved);
+        return resolved.toString();
+    }
+
+    private int exportFiles(Path output) throws IOException {
+        int files = 0;
+
+        try (Writer writer = Files.newBufferedWriter(output.resolve("files.ndjson"), StandardCharsets.UTF_8)) {
+            Set<Integer> visited = new HashSet<>();
+            int fileIndex = parseIndex(readRegion(0, -1, 0, CHUNK_LAYERS));
+
+            while (fileIndex != 0 && visited.add(fileIndex)) {
+                String[] fields = readRegion(0, -fileIndex - 1, 0, CHUNK_LAYERS).split(",");
+
+                if (fields.length < 4) {
+                    System.err.println("Stopped at corrupt metadata for file " + fileIndex);
+                    break;
+                }
+
+                int dataLength = readSpanning(1, -fileIndex - 1).length();
+
+                // Optional fields after the mime: raw files say so in an encoding field, the rest are base64 text,
+                // and newer files record their decoded size
+                String encoding = "base64";
+                String size = "null";
+                for (int i = 4; i < fields.length; i++) {
+                    if (fields[i].startsWith("encoding:")) {
+                        encoding = fields[i].substring("encoding:".length());
+                    } else if (fields[i].startsWith("size:") && fields[i].substring("size:".length()).matches("\\d+")) {
+                        size = fields[i].substring("size:".length());
+                    }
+                }
+
+                writer.write("{\"index\":" + fileIndex + ",\"title\":\"" + escape(fields[2]) + "\",\"mime\":\"" + escape(fields[3])
+                        + "\",\"encoding\":\"" + escape(encoding) + "\",\"size\":" + size + ",\"storedLength\":" + dataLength + "}\n");
+                files++;
+
+                fileIndex = parseIndex(fields[1]);
+            }
+        }
+
+        return files;
+    }
+
+    // ==================== REGION DECODING ====================
+
+    /**
+     * Reads a run of layers of one MCDB chunk index, the same way DataWorker's page stores do
+     */
+    private String readRegion(int xIndex, int zIndex, int baseLayer, int layers) {
+        ChunkData chunk = chunkAt(xIndex, zIndex - 1);
+        if (chunk == NO_CHUNK) {
+            return "";
+        }
+
+        byte[] stored = chunk.persistentData.get(PDC_KEY_PREFIX + baseLayer + "_" + layers);
+        if (stored != null) {
+            return new String(stored, StandardCharsets.ISO_8859_1);
+        }
+
+        StringBuilder ascii = new StringBuilder();
+        int capacity = layers * 256;
+
+        for (int offset = 0; offset + 1 < capacity; offset += 2) {
+            int high = hexAt(chunk, offset, baseLayer);
+            int low = hexAt(chunk, offset + 1, baseLayer);
+
+            if (high < 0 || low < 0) {
+                break;
+            }
+
+            ascii.append((char) (high * 16 + low));
+        }
+
+        return ascii.toString();
+    }
+
+    private String readSpanning(int xIndex, int zIndex) {
+        StringBuilder content = new StringBuilder();
+
+        for (int chunks = 0; chunks < MAX_SPANNING_CHUNKS; chunks++) {
+            String piece = readRegion(xIndex + chunks, zIndex, 0, CHUNK_LAYERS);
+            content.append(piece);
+
+            // Only a chunk filled to the last block carries on into the next one
+            if (piece.length() * 2 < CHUNK_LAYERS * 256) {
+                break;
+            }
+        }
+
+        return content.toString();
+    }
+
+    /**
+     * The hex digit of the block at the given offset in a region's write order (x, then z towards negative,
+     * then y), or -1 if it isn't wool
+     */
+    private static int hexAt(ChunkData chunk, int offset, int baseLayer) {
+        int localX = offset % 16;
+        int localZ = 15 - (offset / 16) % 16;
+        int layer = baseLayer + offset / 256;
+
+        int sectionIndex = layer / 16;
+        if (sectionIndex >= chunk.palettes.length || chunk.palettes[sectionIndex] == null) {
+            return -1;
+        }
+
+        int[] palette = chunk.palettes[sectionIndex];
+        long[] data = chunk.blockData[sectionIndex];
+
+        if (data == null) {
+            return palette[0];
+        }
+
+        int bits = Math.max(4, 32 - Integer.numberOfLeadingZeros(palette.length - 1));
+        int perLong = 64 / bits;
+        int index = ((layer % 16) * 16 + localZ) * 16 + localX;
+
+        long word = data[index / perLong];
+        int paletteIndex = (int) ((word >>> ((index % perLong) * bits)) & ((1L << bits) - 1));
+
+        return paletteIndex < palette.length ? palette[paletteIndex] : -1;
+    }
+
+    private static int woolHex(String blockName) {
+        return switch (blockName) {
+            case "minecraft:white_wool" -> 0x0;
+            case "minecraft:orange_wool" -> 0x1;
+            case "minecraft:magenta_wool" -> 0x2;
+            case "minecraft:light_blue_wool" -> 0x3;
+            case "minecraft:yellow_wool" -> 0x4;
+            case "minecraft:lime_wool" -> 0x5;
+            case "minecraft:pink_wool" -> 0x6;
+            case "minecraft:gray_wool" -> 0x7;
+            case "minecraft:light_gray_wool" -> 0x8;
+            case "minecraft:cyan_wool" -> 0x9;
+            case "minecraft:purple_wool" -> 0xA;
+            case "minecraft:blue_wool" -> 0xB;
+            case "minecraft:brown_wool" -> 0xC;
+            case "minecraft:green_wool" -> 0xD;
+            case "minecraft:red_wool" -> 0xE;
+            case "minecraft:black_wool" -> 0xF;
+            default -> -1;
+        };
+    }
+
+    // ==================== ANVIL ====================
+
+    /**
+     * Only what MCDB needs from a chunk: each section's palette as hex digits (-1 for anything but wool) with its
+     * packed block indexes, and the chunk's persistent data byte arrays
+     */
+    private static class ChunkData {
+        int[][] palettes = new int[CHUNK_LAYERS / 16][];
+        long[][] blockData = new long[CHUNK_LAYERS / 16][];
+        Map<String, byte[]> persistentData = new HashMap<>();
+    }
+
+    /**
+     * Where a chunk sits in its memory-mapped region file. The mapping outlives the channel it came from
+     */
+    private record ChunkLocation(MappedByteBuffer buffer, int position, int length, int compression, Path file,
+                                 int chunkIndex) {
+    }
+
+    /**
+     * Only reads the region's location table; the chunks themselves are decoded by chunkAt when first needed
+     */
+    private void loadRegionFile(Path file) {
+        String[] name = file.getFileName().toString().split("\\.");
+        int regionX;
+        int regionZ;
+
+        try {
+            regionX = Integer.parseInt(name[1]);
+            regionZ = Integer.parseInt(name[2]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Skipping " + file.getFileName() + ": not a region file name");
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < 8192) {
+                return;
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            for (int i = 0; i < 1024; i++) {
+                int location = buffer.getInt(i * 4);
+                int sectorOffset = location >>> 8;
+
+                if (sectorOffset == 0) {
+                    continue;
+                }
+
+                long position = (long) sectorOffset * 4096;
+                if (position + 5 > channel.size()) {
+                    continue;
+                }
+
+                int length = buffer.getInt((int) position);
+                int compression = buffer.get((int) position + 4) & 0xFF;
+
+                if (length <= 1 || position + 4 + length > channel.size()) {
+                    continue;
+                }
+
+                locations.put(chunkKey(regionX * 32 + i % 32, regionZ * 32 + i / 32),
+                        new ChunkLocation(buffer, (int) position + 5, length - 1, compression, file, i));
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The decoded chunk at the given chunk coordinates, decompressing it from its region file on first use,
+     * or NO_CHUNK if it was never generated or can't be decoded
+     */
+    private ChunkData chunkAt(int chunkX, int chunkZ) {
+        return chunks.computeIfAbsent(chunkKey(chunkX, chunkZ), key -> {
+            ChunkLocation location = locations.get(key);
+            if (location == null) {
+                return NO_CHUNK;
+            }
+
+            byte[] compressed = new byte[location.length()];
+            location.buffer().get(location.position(), compressed);
+
+            try {
+                return loadChunk(decompress(compressed, location.compression(), location.file(), location.chunkIndex()));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Skipping chunk " + location.chunkIndex() + " of " + location.file().getFileName() + ": " + e.getMessage());
+                return NO_CHUNK;
+            }
+        });
+    }
+
+    private InputStream decompress(byte[] compressed, int compression, Path file, int chunkIndex) throws IOException {
+        if (compression >= 128) {
+            // Oversized chunks live in their own c.X.Z.mcc file next to the region file
+            String[] name = file.getFileName().toString().split("\\.");
+            int chunkX = Integer.parseInt(name[1]) * 32 + chunkIndex % 32;
+            int chunkZ = Integer.parseInt(name[2]) * 32 + chunkIndex / 32;
+
+            compressed = Files.readAllBytes(file.resolveSibling("c." + chunkX + "." + chunkZ + ".mcc"));
+            compression -= 128;
+        }
+
+        InputStream in = new ByteArrayInputStream(compressed);
+
+        return switch (compression) {
+            case 1 -> new GZIPInputStream(in);
+            case 2 -> new InflaterInputStream(in);
+            case 3 -> in;
+            default -> throw new IOException("unsupported compression type " + compression);
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ChunkData loadChunk(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+
+        if (data.readByte() != 10) {
+            throw new IOException("chunk root isn't a compound");
+        }
+        data.readUTF();
+
+        Map<String, Object> root = (Map<String, Object>) readTag(data, 10);
+
+        ChunkData chunk = new ChunkData();
+
+        Object sections = root.get("sections");
+        if (sections instanceof List<?> sectionList) {
+            for (Object entry : sectionList) {
+                Map<String, Object> section = (Map<String, Object>) entry;
+                int sectionIndex = ((Number) section.get("Y")).intValue() + 4;
+
+                if (sectionIndex < 0 || sectionIndex >= chunk.palettes.length || !(section.get("block_states") instanceof Map)) {
+                    continue;
+                }
+
+                Map<String, Object> blockStates = (Map<String, Object>) section.get("block_states");
+                List<Object> palette = (List<Object>) blockStates.get("palette");
+
+                int[] hexPalette = new int[palette.size()];
+                for (int i = 0; i < hexPalette.length; i++) {
+                    hexPalette[i] = woolHex((String) ((Map<String, Object>) palette.get(i)).get("Name"));
+                }
+
+                chunk.palettes[sectionIndex] = hexPalette;
+                chunk.blockData[sectionIndex] = (long[]) blockStates.get("data");
+            }
+        }
+
+        if (root.get("PublicBukkitValues") instanceof Map<?, ?> values) {
+            for (Map.Entry<?, ?> value : values.entrySet()) {
+                if (value.getValue() instanceof byte[] bytes) {
+                    chunk.persistentData.put((String) value.getKey(), bytes);
+                }
+            }
+        }
+
+        return chunk;
+    }
+
+    // ==================== NBT ====================
+
+    private static Object readTag(DataInputStream in, int type) throws IOException {
+        switch (type) {
+            case 1: return in.readByte();
+            case 2: return in.readShort();
+            case 3: return in.readInt();
+            case 4: return in.readLong();
+            case 5: return in.readFloat();
+            case 6: return in.readDouble();
+            case 7: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case 8: return in.readUTF();
+            case 9: {
+                int elementType = in.readByte();
+                int length = in.readInt();
+                List<Object> list = new ArrayList<>(Math.max(0, length));
+                for (int i = 0; i < length; i++) {
+                    list.add(readTag(in, elementType));
+                }
+                return list;
+            }
+            case 10: {
+                Map<String, Object> compound = new HashMap<>();
+                while (true) {
+                    int childType = in.readByte();
+                    if (childType == 0) {
+                        return compound;
+                    }
+                    compound.put(in.readUTF(), readTag(in, childType));
+                }
+            }
+            case 11: {
+                int[] ints = new int[in.readInt()];
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = in.readInt();
+                }
+                return ints;
+            }
+            case 12: {
+                long[] longs = new long[in.readInt()];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = in.readLong();
+                }
+                return longs;
+            }
+            default:
+                throw new IOException("unknown NBT tag type " + type);
+        }
+    }
+
+    // ==================== HELPERS ====================
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private static int parseIndex(String text) {
+        try {
+            return text.isEmpty() ? 0 : Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+}